@@ -6,21 +6,28 @@
 
 package com.jimmystreams;
 
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.activity.ActivityEnvelopeSerializer;
 import com.jimmystreams.bolt.*;
 import com.mongodb.client.model.Filters;
 import org.apache.storm.Config;
 import org.apache.storm.StormSubmitter;
 import org.apache.storm.generated.*;
-import org.apache.storm.mongodb.bolt.MongoUpdateBolt;
 import org.apache.storm.mongodb.common.QueryFilterCreator;
 import org.apache.storm.redis.common.config.JedisClusterConfig;
 import org.apache.storm.redis.common.config.JedisPoolConfig;
 import org.apache.storm.thrift.TException;
+import org.apache.storm.topology.BoltDeclarer;
 import org.apache.storm.topology.TopologyBuilder;
+import org.apache.storm.tuple.Fields;
 import org.apache.storm.LocalCluster;
 
+import com.jimmystreams.spout.FanoutJobSpout;
 import com.jimmystreams.spout.SqsPoolSpout;
 import com.jimmystreams.mapper.ActivityMongoMapper;
+import com.jimmystreams.serialization.BsonDocumentSerializer;
+import com.jimmystreams.serialization.JSONObjectSerializer;
+import org.bson.Document;
 import org.json.JSONObject;
 
 import java.io.IOException;
@@ -44,10 +51,16 @@ class SpreaderTopology implements Serializable {
         builder.setSpout("activities",
                 new SqsPoolSpout(getSqsQueue(), true), 1);
 
+        // Drop the activities delivered more than once.
+        builder.setBolt("dedup",
+                new DeduplicationBolt(), 1)
+                .fieldsGrouping("activities", new Fields("aid"))
+                .fieldsGrouping("activities", SqsPoolSpout.ACTIVITY_DONE_STREAM, new Fields("aid"));
+
         // Extract the audience from the activity.
         builder.setBolt("audience",
                 new AudienceBolt(), 1)
-                .shuffleGrouping("activities");
+                .shuffleGrouping("dedup");
 
         String streamGraph = prop.getProperty("stream_graph");
         // Extract the notification audience from the activity.
@@ -57,58 +70,76 @@ class SpreaderTopology implements Serializable {
                         getOrientDBUser(streamGraph),
                         getOrientDBPassword(streamGraph)
                 ), 1)
-                .shuffleGrouping("activities");
+                .shuffleGrouping("dedup")
+                .allGrouping("audience", SubscriptionsBolt.SUBSCRIPTION_CHANGES_STREAM);
 
         // Save the notification in MongoDB
         builder.setBolt("notification_historic",
                 new NotificationMongoDealerBolt(
                         getMongoDBDsn(),
                         getMongoDBNotificationsCollection()
-                ), 1)
-                .shuffleGrouping("notification_audience");
+                ).withBatching(getMongoDBNotificationsBatchSize(), getMongoDBNotificationsBatchLatency()), 1)
+                .fieldsGrouping("notification_audience", new Fields("group"));
+
+        // Route the activities by the vertex they contend for the most.
+        builder.setBolt("social_partition",
+                new SocialPartitionBolt(), 1)
+                .shuffleGrouping("dedup");
 
         // Save users interactions into the Social Graph
+        // Every hot vertex is written by a single task, the scores of other vertices go to their owners.
         String socialGraph = prop.getProperty("social_graph");
         builder.setBolt("social",
                 new SocialActivityBolt(
                         getOrientDBDsn(socialGraph),
                         getOrientDBUser(socialGraph),
                         getOrientDBPassword(socialGraph)
-                ), 1)
-                .shuffleGrouping("activities");
+                ).withBatching(getSocialBatchSize(), getSocialBatchLatency())
+                .withScoreAccumulation(getSocialScoreVerbs(), getSocialScoreFlushInterval())
+                .withVertexCache(getSocialVertexCacheSize()), 4)
+                .setNumTasks(8)
+                .fieldsGrouping("social_partition", new Fields("key"))
+                .fieldsGrouping("social", SocialActivityBolt.DEFERRED_SCORES_STREAM, new Fields("key"));
 
         // Look for all streams subscribed to the audience.
         // Read subscriptions from OrientDB database.
-        builder.setBolt("subscriptions",
+        BoltDeclarer subscriptions = builder.setBolt("subscriptions",
                 new SubscriptionsBolt(
                         getOrientDBDsn(streamGraph),
                         getOrientDBUser(streamGraph),
                         getOrientDBPassword(streamGraph)
-                ), 3)
+                ).withFanoutQueue(getSqsFanoutQueue()), 3)
                 .setNumTasks(6)
-                .shuffleGrouping("audience", "timeline");
+                .shuffleGrouping("audience", "timeline")
+                .allGrouping("audience", SubscriptionsBolt.SUBSCRIPTION_CHANGES_STREAM);
+
+        // Chunks of the large audiences, each one acknowledged on its own.
+        if (!getSqsFanoutQueue().isEmpty()) {
+            builder.setSpout("fanout_jobs",
+                    new FanoutJobSpout(getSqsFanoutQueue(), true), 1);
+            subscriptions.shuffleGrouping("fanout_jobs");
+        }
         // Store activity logs for explicit audience in other collection
 
         // Filters to update or create an activity on Mongo Collection
         QueryFilterCreator updateQueryFilters = (QueryFilterCreator) tuple -> {
 
             // Get data needed form Tuple
-            JSONObject activity = (JSONObject)tuple.getValueByField("activity");
+            ActivityEnvelope activity = (ActivityEnvelope)tuple.getValueByField("activity");
             String stream = tuple.getValueByField("stream").toString();
 
             return Filters.and(
-                    Filters.eq("aid", activity.getString("aid")),
+                    Filters.eq("aid", activity.getAid()),
                     Filters.eq("stream", stream)
             );
         };
 
-        MongoUpdateBolt activityLogBolt = new MongoUpdateBolt(
+        MongoBulkUpsertBolt activityLogBolt = new MongoBulkUpsertBolt(
                 getMongoDBDsn(),
                 getMongoDBActivitiesCollection(),
                 updateQueryFilters,
                 new ActivityMongoMapper()
-        );
-        activityLogBolt.withUpsert(true);
+        ).withBatching(getMongoDBBatchSize(), getMongoDBBatchLatency());
 
         builder.setBolt("activityLog", activityLogBolt, 4)
                 .setNumTasks(8)
@@ -116,13 +147,12 @@ class SpreaderTopology implements Serializable {
 
         // Store the activity as historical for the streams.
 
-        MongoUpdateBolt timelineBolt = new MongoUpdateBolt(
+        MongoBulkUpsertBolt timelineBolt = new MongoBulkUpsertBolt(
                 getMongoDBDsn(),
                 getMongoDBTimeLineCollection(),
                 updateQueryFilters,
                 new ActivityMongoMapper()
-        );
-        timelineBolt.withUpsert(true);
+        ).withBatching(getMongoDBBatchSize(), getMongoDBBatchLatency());
         builder.setBolt("timeline", timelineBolt, 4)
                 .setNumTasks(8)
                 .shuffleGrouping("subscriptions");
@@ -131,14 +161,21 @@ class SpreaderTopology implements Serializable {
         // This bolt should be processed as soon as possible.
         // Limit streams up-to 1000 entries.
         builder.setBolt("recent",
-                new RedisUpdatesBolt(getRedisClusterConfig(), 1000), 8)
+                new RedisUpdatesBolt(getRedisClusterConfig(), 1000)
+                        .withBatching(getRedisBatchSize(), getRedisBatchLatency()), 8)
                 .setNumTasks(16)
                 .shuffleGrouping("subscriptions");
 
+        // Signal every user at most once per window that the timeline has new activities.
+        builder.setBolt("timeline_signal", new TimelineSignalBolt(), 2)
+                .setNumTasks(4)
+                .fieldsGrouping("recent", new Fields("user"));
+
         builder.setBolt("publish_notification",
-                new NotificationRedisDealerBolt(getRedisClusterInitialNodes()), 1)
+                new NotificationRedisDealerBolt(getRedisClusterInitialNodes())
+                        .withBatching(getNotificationRedisBatchSize(), getNotificationRedisBatchLatency()), 1)
                 .shuffleGrouping("notification_historic")
-                .shuffleGrouping("recent");
+                .shuffleGrouping("timeline_signal");
 
 
         // Submit the topology
@@ -212,6 +249,93 @@ class SpreaderTopology implements Serializable {
         return prop.getProperty("mongodb_notifications_collection");
     }
 
+    /**
+     * Amount of notifications aggregated before being written to MongoDB.
+     *
+     * @return The batch size. Zero disables the aggregation.
+     */
+    private static int getMongoDBNotificationsBatchSize() {
+        return Integer.valueOf(prop.getProperty("mongodb_notifications_batch_size", "0"));
+    }
+
+    /**
+     * Maximum time a notification waits to be aggregated with others.
+     *
+     * @return The time in milliseconds.
+     */
+    private static int getMongoDBNotificationsBatchLatency() {
+        return Integer.valueOf(prop.getProperty("mongodb_notifications_batch_latency", "1000"));
+    }
+
+    /**
+     * Amount of upserts sent to MongoDB per bulk write.
+     *
+     * @return The batch size.
+     */
+    private static int getMongoDBBatchSize() {
+        return Integer.valueOf(prop.getProperty("mongodb_batch_size", "100"));
+    }
+
+    /**
+     * Maximum time an upsert waits before being sent to MongoDB.
+     *
+     * @return The time in milliseconds.
+     */
+    private static int getMongoDBBatchLatency() {
+        return Integer.valueOf(prop.getProperty("mongodb_batch_latency", "1000"));
+    }
+
+    /**
+     * Amount of activities committed together to the social graph.
+     *
+     * @return The batch size. One commits every activity alone.
+     */
+    private static int getSocialBatchSize() {
+        return Integer.valueOf(prop.getProperty("social_batch_size", "1"));
+    }
+
+    /**
+     * Maximum time an activity waits before being committed to the social graph.
+     *
+     * @return The time in milliseconds.
+     */
+    private static int getSocialBatchLatency() {
+        return Integer.valueOf(prop.getProperty("social_batch_latency", "1000"));
+    }
+
+    /**
+     * Verbs whose score increments are accumulated and written periodically.
+     *
+     * @return The verbs.
+     */
+    private static List<String> getSocialScoreVerbs() {
+        List<String> verbs = new ArrayList<>();
+        for (String verb : prop.getProperty("social_score_verbs", "").split(",")) {
+            if (verb.trim().length() > 0) {
+                verbs.add(verb.trim());
+            }
+        }
+        return verbs;
+    }
+
+    /**
+     * Time between writes of the accumulated scores.
+     *
+     * @return The time in milliseconds.
+     */
+    private static int getSocialScoreFlushInterval() {
+        return Integer.valueOf(prop.getProperty("social_score_flush_interval", "1000"));
+    }
+
+    /**
+     * Maximum amount of social graph vertices whose record id is cached per task.
+     *
+     * @return The cache size.
+     */
+    private static int getSocialVertexCacheSize() {
+        return Integer.valueOf(prop.getProperty("social_vertex_cache_size", "10000"));
+    }
+
     /**
      * AWS SQS queue to read messages.
      *
@@ -221,6 +345,15 @@ class SpreaderTopology implements Serializable {
         return prop.getProperty("sqs_queue");
     }
 
+    /**
+     * AWS SQS queue of the fan-out jobs, empty to expand every audience in a single tuple.
+     *
+     * @return The queue where the subscriptions bolt stores the next chunk of large audiences.
+     */
+    private static String getSqsFanoutQueue() {
+        return prop.getProperty("sqs_fanout_queue", "");
+    }
+
     /**
      * Configuration for redis using Jedis client.
      *
@@ -255,6 +388,42 @@ class SpreaderTopology implements Serializable {
         return configBuilder.build();
     }
 
+    /**
+     * Amount of activities written to redis per pipeline.
+     *
+     * @return The batch size. Zero disables the batching.
+     */
+    private static int getRedisBatchSize() {
+        return Integer.valueOf(prop.getProperty("redis_batch_size", "0"));
+    }
+
+    /**
+     * Maximum time an activity waits before being written to redis.
+     *
+     * @return The time in milliseconds.
+     */
+    private static int getRedisBatchLatency() {
+        return Integer.valueOf(prop.getProperty("redis_batch_latency", "1000"));
+    }
+
+    /**
+     * Amount of notification pings published to redis per pipeline.
+     *
+     * @return The batch size. Zero disables the batching.
+     */
+    private static int getNotificationRedisBatchSize() {
+        return Integer.valueOf(prop.getProperty("redis_notification_batch_size", "0"));
+    }
+
+    /**
+     * Maximum time a notification ping waits before being published.
+     *
+     * @return The time in milliseconds.
+     */
+    private static int getNotificationRedisBatchLatency() {
+        return Integer.valueOf(prop.getProperty("redis_notification_batch_latency", "500"));
+    }
+
     private static Map<String, Integer> getRedisClusterInitialNodes() {
         Map<String, Integer> nodes = new HashMap<>();
         nodes.put(prop.getProperty("redis_host"), Integer.valueOf(prop.getProperty("redis_port")));
@@ -288,6 +457,19 @@ class SpreaderTopology implements Serializable {
         return prop.getProperty(String.format("%s_orientdb_password", graph));
     }
 
+    /**
+     * Serialization of tuples between workers.
+     * Every value emitted must have a Kryo serializer, Java serialization is disabled.
+     *
+     * @param conf The topology configuration.
+     */
+    static void registerSerializations(Config conf) {
+        conf.registerSerialization(ActivityEnvelope.class, ActivityEnvelopeSerializer.class);
+        conf.registerSerialization(Document.class, BsonDocumentSerializer.class);
+        conf.registerSerialization(JSONObject.class, JSONObjectSerializer.class);
+        conf.setFallBackOnJavaSerialization(false);
+    }
+
     /**
      * Runtime topology configuration.
      *
@@ -300,14 +482,40 @@ class SpreaderTopology implements Serializable {
         conf.setNumWorkers(Integer.valueOf(prop.getProperty("topology_workers")));
         conf.setMaxSpoutPending(Integer.valueOf(prop.getProperty("topology_max_spout_pending")));
 
+        // Serialization of tuples between workers.
+        registerSerializations(conf);
+
         // Spout interaction with SQS queue.
         conf.put("sqs_sleep_time", Integer.valueOf(prop.getProperty("sqs_sleep_time")));
         conf.put("sqs_batch", Integer.valueOf(prop.getProperty("sqs_batch")));
+        conf.put("sqs_receivers", Integer.valueOf(prop.getProperty("sqs_receivers")));
+        conf.put("sqs_buffer", Integer.valueOf(prop.getProperty("sqs_buffer")));
+        conf.put("sqs_wait_time", Integer.valueOf(prop.getProperty("sqs_wait_time")));
+        conf.put("sqs_flush_interval", Integer.valueOf(prop.getProperty("sqs_flush_interval")));
+        conf.put("sqs_visibility_timeout", Integer.valueOf(prop.getProperty("sqs_visibility_timeout")));
+        conf.put("sqs_rate_min", Integer.valueOf(prop.getProperty("sqs_rate_min")));
+        conf.put("sqs_rate_max", Integer.valueOf(prop.getProperty("sqs_rate_max")));
+        conf.put("sqs_rate_step", Integer.valueOf(prop.getProperty("sqs_rate_step")));
+        conf.put("sqs_rate_target_latency", Integer.valueOf(prop.getProperty("sqs_rate_target_latency")));
         conf.put("access_key", prop.getProperty("access_key"));
         conf.put("secret_key", prop.getProperty("secret_key"));
 
+        // Duplicated activities detection.
+        conf.put("dedup_capacity", Integer.valueOf(prop.getProperty("dedup_capacity")));
+        conf.put("dedup_window", Integer.valueOf(prop.getProperty("dedup_window")));
+        conf.put("timeline_signal_window", Integer.valueOf(prop.getProperty("timeline_signal_window")));
+        conf.put("timeline_signal_capacity", Integer.valueOf(prop.getProperty("timeline_signal_capacity")));
+
         // Size of requests to OrientDB.
         conf.put("stream_orientdb_batch", Integer.valueOf(prop.getProperty("stream_orientdb_batch")));
+        conf.put("stream_orientdb_keyset", Integer.valueOf(prop.getProperty("stream_orientdb_keyset")));
+        conf.put("stream_fanout_chunk", Integer.valueOf(prop.getProperty("stream_fanout_chunk")));
+
+        // Cache of subscriptions per stream.
+        conf.put("stream_cache_size", Integer.valueOf(prop.getProperty("stream_cache_size")));
+        conf.put("stream_cache_ttl", Integer.valueOf(prop.getProperty("stream_cache_ttl")));
+        conf.put("stream_cache_max_subscribers", Integer.valueOf(prop.getProperty("stream_cache_max_subscribers")));
+        conf.put("stream_cache_time_bucket", Integer.valueOf(prop.getProperty("stream_cache_time_bucket")));
 
         return conf;
     }
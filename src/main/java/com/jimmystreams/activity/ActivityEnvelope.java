@@ -0,0 +1,198 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.activity;
+
+import com.jimmystreams.util.IsoDates;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Immutable activity travelling through the topology.
+ * The activity is parsed once when it enters the topology, the fields used for routing are
+ * extracted and the original JSON is kept as bytes so it can be stored without serializing it again.
+ *
+ * see: http://activitystrea.ms/specs/json/1.0/#activity
+ */
+public final class ActivityEnvelope implements Serializable {
+    /**
+     * Value of the published date when the activity does not have a valid one.
+     */
+    public static final long UNKNOWN_PUBLISHED = Long.MIN_VALUE;
+
+    /**
+     * Explicit audience fields.
+     *
+     * see: http://activitystrea.ms/specs/json/targeting/1.0/#properties
+     */
+    public static final String[] AUDIENCE_FIELDS = new String[]{"to", "bto", "cc", "bcc"};
+
+    private final String aid;
+    private final String verb;
+    private final ActivityObject actor;
+    private final ActivityObject object;
+    private final ActivityObject target;
+    private final long published;
+    private final Map<String, List<ActivityObject>> audience;
+    private final byte[] raw;
+
+    private transient String json;
+
+    ActivityEnvelope(String aid, String verb, ActivityObject actor, ActivityObject object, ActivityObject target,
+                     long published, Map<String, List<ActivityObject>> audience, byte[] raw) {
+        this.aid = aid;
+        this.verb = verb;
+        this.actor = actor;
+        this.object = object;
+        this.target = target;
+        this.published = published;
+        this.audience = audience;
+        this.raw = raw;
+    }
+
+    /**
+     * Parse an activity.
+     *
+     * @param json The activity in JSON format.
+     *
+     * @return The activity.
+     *
+     * @throws org.json.JSONException When the JSON is wrong or required fields are missing.
+     */
+    public static ActivityEnvelope parse(String json) {
+        JSONObject activity = new JSONObject(json);
+
+        Map<String, List<ActivityObject>> audience = new HashMap<>();
+        for (String field : AUDIENCE_FIELDS) {
+            if (activity.has(field)) {
+                JSONArray list = activity.getJSONArray(field);
+                List<ActivityObject> objects = new ArrayList<>(list.length());
+                for (int i = 0; i < list.length(); i++) {
+                    objects.add(ActivityObject.from(list.getJSONObject(i)));
+                }
+                audience.put(field, Collections.unmodifiableList(objects));
+            }
+        }
+
+        ActivityEnvelope envelope = new ActivityEnvelope(
+                activity.getString("aid"),
+                activity.getString("verb"),
+                ActivityObject.from(activity.optJSONObject("actor")),
+                ActivityObject.from(activity.optJSONObject("object")),
+                ActivityObject.from(activity.optJSONObject("target")),
+                parsePublished(activity.optString("published", null)),
+                Collections.unmodifiableMap(audience),
+                json.getBytes(StandardCharsets.UTF_8));
+        envelope.json = json;
+
+        return envelope;
+    }
+
+    private static long parsePublished(String published) {
+        if (published == null) {
+            return UNKNOWN_PUBLISHED;
+        }
+
+        try {
+            return IsoDates.parseMillis(published);
+        } catch (ParseException e) {
+            return UNKNOWN_PUBLISHED;
+        }
+    }
+
+    public String getAid() {
+        return this.aid;
+    }
+
+    public String getVerb() {
+        return this.verb;
+    }
+
+    /**
+     * @return The actor or null when the activity does not include it.
+     */
+    public ActivityObject getActor() {
+        return this.actor;
+    }
+
+    /**
+     * @return The object or null when the activity does not include it.
+     */
+    public ActivityObject getObject() {
+        return this.object;
+    }
+
+    /**
+     * @return The target or null when the activity does not include it.
+     */
+    public ActivityObject getTarget() {
+        return this.target;
+    }
+
+    /**
+     * The date is read as UTC (see {@link IsoDates}), not in the time zone of the worker.
+     *
+     * @return The epoch milliseconds when the activity was published.
+     */
+    public long getPublished() {
+        return this.published;
+    }
+
+    public boolean hasPublished() {
+        return this.published != UNKNOWN_PUBLISHED;
+    }
+
+    /**
+     * @param field One of the explicit audience fields.
+     *
+     * @return The audience, empty when the activity does not include the field.
+     */
+    public List<ActivityObject> getAudience(String field) {
+        List<ActivityObject> objects = this.audience.get(field);
+        return objects != null ? objects : Collections.<ActivityObject>emptyList();
+    }
+
+    Map<String, List<ActivityObject>> getAudience() {
+        return this.audience;
+    }
+
+    /**
+     * @return The original activity encoded in UTF-8. The array must not be modified.
+     */
+    public byte[] getRaw() {
+        return this.raw;
+    }
+
+    /**
+     * @return The original activity.
+     */
+    public String getJson() {
+        if (this.json == null) {
+            this.json = new String(this.raw, StandardCharsets.UTF_8);
+        }
+        return this.json;
+    }
+
+    /**
+     * Parse the original activity again.
+     * The result is a new object on every call, so it can be modified.
+     *
+     * @return The activity as JSON tree.
+     */
+    public JSONObject toJSONObject() {
+        return new JSONObject(this.getJson());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s (%s)", this.verb, this.aid, this.actor);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.activity;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.util.*;
+
+/**
+ * Kryo serializer for activities travelling between workers.
+ * The pre-extracted fields are written next to the raw JSON, so the activity is not parsed again.
+ */
+public class ActivityEnvelopeSerializer extends Serializer<ActivityEnvelope> {
+
+    public ActivityEnvelopeSerializer() {
+        // Envelopes are immutable, copies can share the instance.
+        this.setImmutable(true);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, ActivityEnvelope activity) {
+        output.writeString(activity.getAid());
+        output.writeString(activity.getVerb());
+        this.writeObject(output, activity.getActor());
+        this.writeObject(output, activity.getObject());
+        this.writeObject(output, activity.getTarget());
+        output.writeLong(activity.getPublished());
+
+        Map<String, List<ActivityObject>> audience = activity.getAudience();
+        output.writeInt(audience.size(), true);
+        for (Map.Entry<String, List<ActivityObject>> entry : audience.entrySet()) {
+            output.writeString(entry.getKey());
+            output.writeInt(entry.getValue().size(), true);
+            for (ActivityObject object : entry.getValue()) {
+                this.writeObject(output, object);
+            }
+        }
+
+        byte[] raw = activity.getRaw();
+        output.writeInt(raw.length, true);
+        output.writeBytes(raw);
+    }
+
+    @Override
+    public ActivityEnvelope read(Kryo kryo, Input input, Class<ActivityEnvelope> type) {
+        String aid = input.readString();
+        String verb = input.readString();
+        ActivityObject actor = this.readObject(input);
+        ActivityObject object = this.readObject(input);
+        ActivityObject target = this.readObject(input);
+        long published = input.readLong();
+
+        int fields = input.readInt(true);
+        Map<String, List<ActivityObject>> audience = new HashMap<>(fields);
+        for (int i = 0; i < fields; i++) {
+            String field = input.readString();
+            int size = input.readInt(true);
+            List<ActivityObject> objects = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                objects.add(this.readObject(input));
+            }
+            audience.put(field, Collections.unmodifiableList(objects));
+        }
+
+        byte[] raw = input.readBytes(input.readInt(true));
+
+        return new ActivityEnvelope(aid, verb, actor, object, target, published,
+                Collections.unmodifiableMap(audience), raw);
+    }
+
+    private void writeObject(Output output, ActivityObject object) {
+        output.writeBoolean(object != null);
+        if (object != null) {
+            output.writeString(object.getId());
+            output.writeString(object.getObjectType());
+        }
+    }
+
+    private ActivityObject readObject(Input input) {
+        if (!input.readBoolean()) {
+            return null;
+        }
+        return new ActivityObject(input.readString(), input.readString());
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.activity;
+
+import org.json.JSONObject;
+
+import java.io.Serializable;
+
+/**
+ * Reference to an object of the activity (actor, object, target or audience).
+ *
+ * see: http://activitystrea.ms/specs/json/1.0/#object
+ */
+public final class ActivityObject implements Serializable {
+    private final String id;
+    private final String objectType;
+
+    public ActivityObject(String id, String objectType) {
+        this.id = id;
+        this.objectType = objectType;
+    }
+
+    /**
+     * @param object The JSON representation of the object.
+     *
+     * @return The reference or null when the object is missing.
+     */
+    static ActivityObject from(JSONObject object) {
+        if (object == null) {
+            return null;
+        }
+
+        return new ActivityObject(object.getString("id"), object.optString("objectType", null));
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * @return The type of the object, null when the activity does not include it.
+     */
+    public String getObjectType() {
+        return this.objectType;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s:%s", this.objectType, this.id);
+    }
+}
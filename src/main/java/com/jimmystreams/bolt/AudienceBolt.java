@@ -15,9 +15,9 @@ import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Values;
 import org.apache.log4j.Logger;
 
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.activity.ActivityObject;
 import org.bson.Document;
-import org.json.JSONObject;
-import org.json.JSONArray;
 import java.util.*;
 
 /**
@@ -31,9 +31,8 @@ import java.util.*;
  * see: http://activitystrea.ms/specs/json/targeting/1.0/#properties
  */
 public class AudienceBolt extends BaseRichBolt {
-    private String[] implicitAudiences = new String[]{"actor"};
-    private String[] explicitAudiences = new String[]{"to", "bto", "cc", "bcc"};
     private HashSet<Object> ignoreVerbs = new HashSet<>(Arrays.asList(new String[] {"read", "unfollow"}));
+    private HashSet<Object> subscriptionVerbs = new HashSet<>(Arrays.asList(new String[] {"follow", "unfollow"}));
     private OutputCollector _collector;
 
     private final static Logger logger = Logger.getLogger(AudienceBolt.class);
@@ -42,6 +41,7 @@ public class AudienceBolt extends BaseRichBolt {
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
         declarer.declareStream("timeline", new Fields   ("stream", "activity"));
         declarer.declareStream("activityLog", new Fields("stream", "activity"));
+        declarer.declareStream(SubscriptionsBolt.SUBSCRIPTION_CHANGES_STREAM, new Fields("stream"));
     }
 
     @Override
@@ -51,21 +51,24 @@ public class AudienceBolt extends BaseRichBolt {
 
     @Override
     public void execute(Tuple input) {
-        // Activity JSON.
-        JSONObject activity = (JSONObject)input.getValueByField("activity");
-        String activity_id = activity.getString("aid");
+        ActivityEnvelope activity = (ActivityEnvelope)input.getValueByField("activity");
+        String activity_id = activity.getAid();
+
+        // The followed stream gained or lost a subscriber.
+        if (this.subscriptionVerbs.contains(activity.getVerb()) && activity.getObject() != null) {
+            this._collector.emit(SubscriptionsBolt.SUBSCRIPTION_CHANGES_STREAM, input,
+                    new Values(activity.getObject().getId()));
+        }
 
         // Ignore activities
         if (!this.ignoreActivity(activity)) {
 
-            for (String audience : this.implicitAudiences) {
-                if (activity.has(audience)) {
-                    String streamId = activity.getJSONObject(audience).getString("id");
-                    logger.info(String.format("Audience %s for activity %s", streamId, activity_id));
+            if (activity.getActor() != null) {
+                String streamId = activity.getActor().getId();
+                logger.info(String.format("Audience %s for activity %s", streamId, activity_id));
 
-                    Document stream = new Document("id", streamId).append("persist", false);
-                    this._collector.emit("timeline", input, new Values(stream, activity));
-                }
+                Document stream = new Document("id", streamId).append("persist", false);
+                this._collector.emit("timeline", input, new Values(stream, activity));
             }
 
             // Include audience by activity verb value
@@ -75,20 +78,17 @@ public class AudienceBolt extends BaseRichBolt {
 
             // Explicit audiences are lists.
             // Save in mongoDB explicit audience
-            for (String audience : this.explicitAudiences) {
-                if (activity.has(audience)) {
-                    JSONArray list = activity.getJSONArray(audience);
-                    for (Object aud : list) {
-                        String streamId = ((JSONObject) aud).getString("id");
-                        String streamType = ((JSONObject) aud).getString("objectType");
-                        logger.info(String.format("Audience %s for activity %s", streamId, activity_id));
-
-                        Document stream = new Document("id", streamId).append("persist", true);
-                        this._collector.emit("timeline", input, new Values(stream, activity));
-
-                        if (streamType.toLowerCase().equals("user")) {
-                            this._collector.emit("activityLog", input, new Values(streamId, activity));
-                        }
+            for (String audience : ActivityEnvelope.AUDIENCE_FIELDS) {
+                for (ActivityObject aud : activity.getAudience(audience)) {
+                    String streamId = aud.getId();
+                    String streamType = aud.getObjectType();
+                    logger.info(String.format("Audience %s for activity %s", streamId, activity_id));
+
+                    Document stream = new Document("id", streamId).append("persist", true);
+                    this._collector.emit("timeline", input, new Values(stream, activity));
+
+                    if ("user".equalsIgnoreCase(streamType)) {
+                        this._collector.emit("activityLog", input, new Values(streamId, activity));
                     }
                 }
             }
@@ -98,13 +98,13 @@ public class AudienceBolt extends BaseRichBolt {
         this._collector.ack(input);
     }
 
-    private Document[] getActivityAudienceByVerb(JSONObject activity)
+    private Document[] getActivityAudienceByVerb(ActivityEnvelope activity)
     {
-        switch(activity.getString("verb"))
+        switch(activity.getVerb())
         {
             case "review":
                 return new Document[]{
-                        new Document("id", activity.getJSONObject("target").getString("id"))
+                        new Document("id", activity.getTarget().getId())
                                 .append("persist", false)
                 };
             default:
@@ -112,7 +112,7 @@ public class AudienceBolt extends BaseRichBolt {
         }
     }
 
-    private boolean ignoreActivity(JSONObject activity) {
-        return this.ignoreVerbs.contains(activity.getString("verb"));
+    private boolean ignoreActivity(ActivityEnvelope activity) {
+        return this.ignoreVerbs.contains(activity.getVerb());
     }
 }
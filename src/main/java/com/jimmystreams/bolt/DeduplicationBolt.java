@@ -0,0 +1,146 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.bolt;
+
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.spout.SqsPoolSpout;
+import com.jimmystreams.util.ExpiringCache;
+import com.jimmystreams.util.RotatingBloomFilter;
+import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.CountMetric;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bolt that drops the activities already processed, so their fan-out is not done twice.
+ * SQS delivers messages at least once, and a message whose visibility expires is delivered again.
+ *
+ * An activity is only recorded as processed when the spout reports its tuple tree completed,
+ * on the "activityDone" stream. Copies arriving while the activity is still in process are held
+ * without acknowledging them: they are dropped when the activity completes and failed when it fails,
+ * so SQS delivers them again.
+ *
+ * The Bloom filter answers quickly for the new activities, the set of recent activities
+ * confirms the duplicates so a false positive never drops an activity.
+ *
+ * The bolt must receive the activities and their outcome grouped by "aid".
+ */
+public class DeduplicationBolt extends BaseRichBolt {
+    /**
+     * False positive probability of the Bloom filter.
+     */
+    private static final double FPP = 0.01;
+
+    private OutputCollector _collector;
+    private RotatingBloomFilter filter;
+    private ExpiringCache<String, Boolean> recent;
+
+    /**
+     * Activities in process and the copies held until they are done.
+     */
+    private ExpiringCache<String, List<Tuple>> inProcess;
+    private CountMetric held;
+    private CountMetric duplicates;
+    private CountMetric replays;
+
+    private final static Logger logger = Logger.getLogger(DeduplicationBolt.class);
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(new Fields("activity"));
+    }
+
+    @Override
+    public void prepare(Map conf, TopologyContext context, OutputCollector collector) {
+        this._collector = collector;
+
+        int capacity = ((Long)conf.get("dedup_capacity")).intValue();
+        long window = ((Long)conf.get("dedup_window")).longValue();
+        this.filter = new RotatingBloomFilter(capacity, FPP, window);
+        this.recent = new ExpiringCache<>(capacity, window);
+        this.inProcess = new ExpiringCache<>(capacity, window);
+
+        this.duplicates = context.registerMetric("dedup_suppressed", new CountMetric(), 60);
+        this.replays = context.registerMetric("dedup_replays", new CountMetric(), 60);
+        this.held = context.registerMetric("dedup_held", new CountMetric(), 60);
+    }
+
+    @Override
+    public void execute(Tuple input) {
+        if (input.getSourceStreamId().equals(SqsPoolSpout.ACTIVITY_DONE_STREAM)) {
+            this.done(input.getStringByField("aid"), input.getBooleanByField("completed"));
+            this._collector.ack(input);
+            return;
+        }
+
+        ActivityEnvelope activity = (ActivityEnvelope)input.getValueByField("activity");
+        String aid = activity.getAid();
+
+        if (input.getBooleanByField("replay")) {
+            this.replays.incr();
+        }
+
+        if (this.filter.mightContain(aid) && this.recent.get(aid) != null) {
+            logger.warn(String.format("Duplicated activity %s", aid));
+            this.duplicates.incr();
+            this._collector.ack(input);
+            return;
+        }
+
+        // Wait for the copy in process, it can still fail.
+        List<Tuple> copies = this.inProcess.get(aid);
+        if (copies != null) {
+            logger.warn(String.format("Activity %s already in process", aid));
+            this.held.incr();
+            copies.add(input);
+            return;
+        }
+
+        this.inProcess.put(aid, new ArrayList<Tuple>());
+        this._collector.emit(input, new Values(activity));
+        this._collector.ack(input);
+    }
+
+    /**
+     * Record the outcome of an activity and release its copies.
+     *
+     * @param aid       The activity.
+     * @param completed Whether the tuple tree completed or failed.
+     */
+    private void done(String aid, boolean completed) {
+        List<Tuple> copies = this.inProcess.get(aid);
+        this.inProcess.invalidate(aid);
+
+        if (completed) {
+            this.filter.put(aid);
+            this.recent.put(aid, Boolean.TRUE);
+        }
+
+        if (copies == null) {
+            return;
+        }
+
+        for (Tuple copy : copies) {
+            if (completed) {
+                this.duplicates.incr();
+                this._collector.ack(copy);
+            }
+            else {
+                this._collector.fail(copy);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.bolt;
+
+import com.jimmystreams.util.TupleBatch;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.apache.log4j.Logger;
+import org.apache.storm.mongodb.common.QueryFilterCreator;
+import org.apache.storm.mongodb.common.mapper.MongoMapper;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.utils.TupleUtils;
+import org.bson.Document;
+
+import java.util.*;
+
+/**
+ * Bolt that upserts documents in MongoDB using unordered bulk writes.
+ * Tuples are buffered until the batch is full, the oldest tuple waited too long or a tick tuple arrives.
+ * Each tuple is acknowledged or failed depending on the result of its own write.
+ */
+public class MongoBulkUpsertBolt extends BaseRichBolt {
+    private String dsn;
+    private String collectionName;
+    private QueryFilterCreator queryCreator;
+    private MongoMapper mapper;
+
+    /**
+     * Amount of upserts per bulk write.
+     */
+    private int batchSize = 100;
+
+    /**
+     * Maximum time (ms) a tuple can wait in the batch.
+     */
+    private int batchLatency = 1000;
+
+    private OutputCollector collector;
+    private MongoClient client;
+    private MongoCollection<Document> collection;
+    private TupleBatch pending;
+
+    private final static Logger logger = Logger.getLogger(MongoBulkUpsertBolt.class);
+
+    public MongoBulkUpsertBolt(String dsn, String collectionName, QueryFilterCreator queryCreator, MongoMapper mapper) {
+        this.dsn = dsn;
+        this.collectionName = collectionName;
+        this.queryCreator = queryCreator;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Configure the flush thresholds.
+     *
+     * @param batchSize    Amount of upserts per bulk write.
+     * @param batchLatency Maximum time (ms) a tuple can wait before being written.
+     *
+     * @return The bolt.
+     */
+    public MongoBulkUpsertBolt withBatching(int batchSize, int batchLatency) {
+        this.batchSize = batchSize;
+        this.batchLatency = batchLatency;
+        return this;
+    }
+
+    @Override
+    public void prepare(Map map, TopologyContext topologyContext, OutputCollector outputCollector) {
+        this.collector = outputCollector;
+        this.pending = new TupleBatch(this.batchSize, this.batchLatency);
+
+        MongoClientURI uri = new MongoClientURI(this.dsn);
+        this.client = new MongoClient(uri);
+        this.collection = this.client.getDatabase(uri.getDatabase()).getCollection(this.collectionName);
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return TupleBatch.tickConfiguration(this.batchLatency);
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) { }
+
+    @Override
+    public void execute(Tuple tuple) {
+        if (!TupleUtils.isTick(tuple)) {
+            this.pending.add(tuple);
+        }
+
+        if (this.pending.isReady()) {
+            this.flush(this.pending.drain());
+        }
+    }
+
+    /**
+     * Write the batch using an unordered bulk write.
+     * Tuples whose upsert could not be built are failed before the write.
+     *
+     * @param tuples The batch.
+     */
+    private void flush(List<Tuple> tuples) {
+        List<WriteModel<Document>> upserts = new ArrayList<>(tuples.size());
+        List<Tuple> written = new ArrayList<>(tuples.size());
+        UpdateOptions options = new UpdateOptions().upsert(true);
+
+        for (Tuple tuple : tuples) {
+            try {
+                upserts.add(new UpdateOneModel<Document>(
+                        this.queryCreator.createFilter(tuple),
+                        this.mapper.toDocument(tuple),
+                        options));
+                written.add(tuple);
+            }
+            catch (RuntimeException e) {
+                logger.error(String.format("Error mapping tuple to %s: %s", this.collectionName, e.toString()));
+                this.collector.fail(tuple);
+            }
+        }
+
+        if (upserts.isEmpty()) {
+            return;
+        }
+
+        Set<Integer> failed = new HashSet<>();
+
+        try {
+            logger.info(String.format("Writing %d documents to %s", upserts.size(), this.collectionName));
+            this.collection.bulkWrite(upserts, new BulkWriteOptions().ordered(false));
+        }
+        catch (MongoBulkWriteException e) {
+            // Unordered writes keep going after an error, only the reported requests failed.
+            for (BulkWriteError error : e.getWriteErrors()) {
+                logger.error(String.format("Error writing to %s: %s", this.collectionName, error.getMessage()));
+                failed.add(error.getIndex());
+            }
+        }
+        catch (MongoException e) {
+            logger.error(String.format("Error writing %d documents to %s: %s", upserts.size(), this.collectionName, e.toString()));
+            for (Tuple tuple : written) {
+                this.collector.fail(tuple);
+            }
+            return;
+        }
+
+        for (int i = 0; i < written.size(); i++) {
+            if (failed.contains(i)) {
+                this.collector.fail(written.get(i));
+            }
+            else {
+                this.collector.ack(written.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        this.client.close();
+    }
+}
@@ -1,16 +1,13 @@
 package com.jimmystreams.bolt;
 
-import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.activity.ActivityObject;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class NotificationAudienceBolt extends SubscriptionsBolt {
@@ -21,12 +18,19 @@ public class NotificationAudienceBolt extends SubscriptionsBolt {
 
     @Override
     public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
-        outputFieldsDeclarer.declare(new Fields("user", "activity"));
+        outputFieldsDeclarer.declare(new Fields("user", "activity", "group"));
     }
 
     @Override
     public void execute(Tuple tuple) {
-        JSONObject activity = (JSONObject)tuple.getValueByField("activity");
+        // A stream gained or lost subscribers.
+        if (tuple.getSourceStreamId().equals(SUBSCRIPTION_CHANGES_STREAM)) {
+            this.invalidateSubscriptions(tuple.getStringByField("stream"));
+            this._collector.ack(tuple);
+            return;
+        }
+
+        ActivityEnvelope activity = (ActivityEnvelope)tuple.getValueByField("activity");
 
         List<JSONObject> audience = this.getNotificationAudience(activity);
 
@@ -38,67 +42,69 @@ public class NotificationAudienceBolt extends SubscriptionsBolt {
         this._collector.ack(tuple);
     }
 
-    private void findSubscriptionsAndEmitTuple(Tuple tuple, JSONObject activity, JSONObject user) {
-        List<ODocument> results;
-        int page = 0;
+    /**
+     * Emit a notification per stream subscribed with notifications to the user.
+     * The first subscriptions come from the cache shared with the timeline, the rest are read page by page.
+     */
+    private void findSubscriptionsAndEmitTuple(Tuple tuple, ActivityEnvelope activity, JSONObject user) {
+        Subscriptions chunk;
+        int offset = 0;
+        String cursor = null;
 
-        DateFormat date_format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'", Locale.ENGLISH);
-        Date published = new Date();
+        Date published = this.getPublished(activity);
         String stream = user.getString("id");
+        String actor = activity.getActor().getId();
 
-        try {
-            published = date_format.parse(activity.getString("published"));
-        } catch (ParseException e) {
-            logger.warn(String.format("Error parsing date from activity <%s>", activity.getString("published")));
-            logger.warn("Use <new Date()> instead");
-        }
         do {
-            results = paginateSubscriptions(stream, true, published, page, this.batch);
-            page++;
-            for (ODocument o : results) {
-                if (!activity.getJSONObject("actor").getString("id").equals(o.<String>field("id"))) {
-
+            chunk = this.findSubscriptions(stream, true, published, offset, cursor, this.batch, actor);
+            offset += chunk.ids.size();
+            cursor = chunk.getCursor();
+            for (String id : chunk.ids) {
+                if (!actor.equals(id)) {
+                    JSONObject subscriber = (new JSONObject())
+                            .put("id", id)
+                            .put("notificationType", user.getString("notificationType"));
+
+                    // The notifications of the same document are aggregated by a single task.
                     this._collector.emit(tuple, new Values(
-                            (new JSONObject())
-                                    .put("id", o.<String>field("id"))
-                                    .put("notificationType", user.getString("notificationType")),
-                            activity
+                            subscriber,
+                            activity,
+                            NotificationMongoDealerBolt.getGroup(subscriber, activity)
                     ));
                 }
             }
-        } while (results.size() == this.batch);
+        } while (!chunk.complete && !chunk.ids.isEmpty());
     }
 
-    private List<JSONObject> getNotificationAudience(JSONObject activity) {
+    private List<JSONObject> getNotificationAudience(ActivityEnvelope activity) {
 
-        String verb = activity.getString("verb");
-        String audienceField;
+        String verb = activity.getVerb();
+        ActivityObject audienceObject;
 
         switch (verb) {
             case "comment":
-                audienceField = "target";
+                audienceObject = activity.getTarget();
                 break;
             default:
-                audienceField = "object";
+                audienceObject = activity.getObject();
         }
 
         List<JSONObject> audience = new ArrayList<>();
 
         audience.add(
             (new JSONObject())
-                .put("id", activity.getJSONObject(audienceField).getString("id"))
-                .put("notificationType", activity.getString("verb"))
+                .put("id", audienceObject.getId())
+                .put("notificationType", verb)
         );
 
         // If verb is publish, mentions should also be notified.
-        if (verb.equals("publish") && activity.has("to")) {
-            JSONArray to = activity.getJSONArray("to");
-
-            for (Object user: to) {
-                if (((JSONObject) user).getString("objectType").equals("user")) {
+        // Mentioning yourself does not notify anybody.
+        if (verb.equals("publish")) {
+            for (ActivityObject user: activity.getAudience("to")) {
+                if ("user".equals(user.getObjectType()) && !activity.getActor().getId().equals(user.getId())) {
                     audience.add(
                         (new JSONObject())
-                                .put("id", ((JSONObject) user).getString("id"))
+                                .put("id", user.getId())
                                 .put("notificationType", "mention")
                     );
                 }
@@ -1,10 +1,26 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
 package com.jimmystreams.bolt;
 
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.activity.ActivityObject;
+import com.jimmystreams.util.TupleBatch;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.apache.log4j.Logger;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
@@ -12,38 +28,95 @@ import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.TupleUtils;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.json.JSONObject;
 
 import java.util.*;
 
+/**
+ * Bolt that aggregates the notifications of a user about the same object.
+ *
+ * The notifications are buffered for a short window and merged by group (user, type, object):
+ * every group is written with a single upsert that pushes its actors and increments "times" by its size.
+ * The upserts of a window are sent in one unordered bulk write.
+ *
+ * The bolt should receive the notifications grouped by "group",
+ * so the same notification document is not written by several tasks.
+ *
+ * Override {@link #openCollection()} to write to another collection, like a local stub.
+ */
 public class NotificationMongoDealerBolt extends BaseRichBolt{
 
     private static final int TIME_WINDOW_SIZE = 12; //12 hrs windows size
 
+    /**
+     * Maximum amount of actors kept in a notification, the most recent ones.
+     */
+    private static final int MAX_WHO = 100;
+
     private static final String NOTIFICATION_MESSAGE_TYPE = "notification";
 
     private OutputCollector collector;
     private MongoClient client;
     private MongoCollection<Document> collection;
+    private TupleBatch pending;
 
     private String dsn;
     private String collectionName;
 
+    /**
+     * Amount of notifications per window. Set to zero (or one) for writing per notification.
+     */
+    private int batchSize = 0;
+
+    /**
+     * Maximum time (ms) a notification can wait in the window.
+     */
+    private int batchLatency = 1000;
+
+    private final static Logger logger = Logger.getLogger(NotificationMongoDealerBolt.class);
+
     public NotificationMongoDealerBolt(String dsn, String collectionName) {
         this.dsn = dsn;
         this.collectionName = collectionName;
     }
 
+    /**
+     * Enable the aggregation window.
+     *
+     * @param batchSize    Maximum amount of notifications in the window.
+     * @param batchLatency Maximum time (ms) a notification can wait before being written.
+     *
+     * @return The bolt.
+     */
+    public NotificationMongoDealerBolt withBatching(int batchSize, int batchLatency) {
+        this.batchSize = batchSize;
+        this.batchLatency = batchLatency;
+        return this;
+    }
+
     @Override
     public void prepare(Map map, TopologyContext topologyContext, OutputCollector outputCollector) {
         this.collector = outputCollector;
+        this.pending = new TupleBatch(Math.max(1, this.batchSize), this.batchLatency);
+        this.collection = this.openCollection();
+    }
 
+    /**
+     * @return The notifications collection of the database in the DSN.
+     */
+    protected MongoCollection<Document> openCollection() {
         MongoClientURI uri = new MongoClientURI(this.dsn);
         this.client = new MongoClient(uri);
         MongoDatabase db = this.client.getDatabase(uri.getDatabase());
-        this.collection = db.getCollection(this.collectionName);
+        return db.getCollection(this.collectionName);
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return this.batchSize > 1 ? TupleBatch.tickConfiguration(this.batchLatency) : null;
     }
 
     @Override
@@ -54,65 +127,183 @@ public class NotificationMongoDealerBolt extends BaseRichBolt{
 
     @Override
     public void execute(Tuple tuple) {
-        JSONObject user = (JSONObject)tuple.getValueByField("user");
-        JSONObject activity = (JSONObject)tuple.getValueByField("activity");
+        if (!TupleUtils.isTick(tuple)) {
+            this.pending.add(tuple);
+        }
 
-        UpdateOptions options = new UpdateOptions();
-        options.upsert(true);
+        if (this.pending.isReady()) {
+            this.flush(this.pending.drain());
+        }
+    }
 
-        Document filters = this.buildNotificationFilters(user, activity);
-        Document updatedNotification = this.buildNotificationUpdatedDocument(user, activity);
+    /**
+     * Merge the notifications of the window by group and write them in one bulk write.
+     *
+     * @param tuples The notifications.
+     */
+    private void flush(List<Tuple> tuples) {
+        Map<String, Aggregate> groups = new LinkedHashMap<>();
 
-        this.collection.updateOne(filters, updatedNotification, options);
+        for (Tuple tuple : tuples) {
+            try {
+                JSONObject user = (JSONObject)tuple.getValueByField("user");
+                ActivityEnvelope activity = (ActivityEnvelope)tuple.getValueByField("activity");
+                String group = getGroup(user, activity);
 
-        this.collector.emit(tuple, new Values(user.getString("id"), NotificationMongoDealerBolt.NOTIFICATION_MESSAGE_TYPE));
+                Aggregate aggregate = groups.get(group);
+                if (aggregate == null) {
+                    aggregate = new Aggregate(user);
+                    groups.put(group, aggregate);
+                }
+                aggregate.add(tuple, activity);
+            }
+            catch (RuntimeException e) {
+                logger.error(String.format("Error mapping notification to %s: %s", this.collectionName, e.toString()));
+                this.collector.fail(tuple);
+            }
+        }
 
-        this.collector.ack(tuple);
-    }
+        if (groups.isEmpty()) {
+            return;
+        }
 
-    private Document buildNotificationFilters(JSONObject user, JSONObject activity) {
+        // The window is the same for every notification of the flush.
         Calendar cal = Calendar.getInstance();
+        Date now = cal.getTime();
         cal.add(Calendar.HOUR, -1 * TIME_WINDOW_SIZE);
         Date fromDate = cal.getTime();
 
+        List<Aggregate> written = new ArrayList<>(groups.values());
+        List<WriteModel<Document>> upserts = new ArrayList<>(written.size());
+        UpdateOptions options = new UpdateOptions().upsert(true);
+
+        for (Aggregate aggregate : written) {
+            upserts.add(new UpdateOneModel<Document>(
+                    this.buildNotificationFilters(aggregate, fromDate),
+                    this.buildNotificationUpdatedDocument(aggregate, now),
+                    options));
+        }
+
+        Set<Integer> failed = new HashSet<>();
+
+        try {
+            logger.info(String.format("Writing %d notifications for %d tuples to %s", upserts.size(), tuples.size(), this.collectionName));
+            this.collection.bulkWrite(upserts, new BulkWriteOptions().ordered(false));
+        }
+        catch (MongoBulkWriteException e) {
+            // Unordered writes keep going after an error, only the reported requests failed.
+            for (BulkWriteError error : e.getWriteErrors()) {
+                logger.error(String.format("Error writing to %s: %s", this.collectionName, error.getMessage()));
+                failed.add(error.getIndex());
+            }
+        }
+        catch (MongoException e) {
+            logger.error(String.format("Error writing %d notifications to %s: %s", upserts.size(), this.collectionName, e.toString()));
+            failed.add(-1);
+        }
+
+        for (int i = 0; i < written.size(); i++) {
+            Aggregate aggregate = written.get(i);
+
+            if (failed.contains(i) || failed.contains(-1)) {
+                for (Tuple tuple : aggregate.tuples) {
+                    this.collector.fail(tuple);
+                }
+                continue;
+            }
+
+            this.collector.emit(aggregate.tuples, new Values(aggregate.user.getString("id"), NotificationMongoDealerBolt.NOTIFICATION_MESSAGE_TYPE));
+            for (Tuple tuple : aggregate.tuples) {
+                this.collector.ack(tuple);
+            }
+        }
+    }
+
+    /**
+     * @return The key of the notification document: user, type and object.
+     */
+    static String getGroup(JSONObject user, ActivityEnvelope activity) {
+        return user.getString("id") + ":" + user.getString("notificationType") + ":" + activity.getObject().getId();
+    }
+
+    private Document buildNotificationFilters(Aggregate aggregate, Date fromDate) {
         return (new Document())
-                .append("user", new ObjectId(user.getString("id")))
-                .append("type", user.getString("notificationType"))
-                .append("object.id", ((JSONObject)activity.get("object")).getString("id"))
+                .append("user", new ObjectId(aggregate.user.getString("id")))
+                .append("type", aggregate.user.getString("notificationType"))
+                .append("object.id", aggregate.object.getId())
                 .append("updatedAt", new Document("$gte", fromDate))
         ;
     }
 
-    private Document buildNotificationUpdatedDocument(JSONObject user, JSONObject activity) {
-        Calendar cal = Calendar.getInstance();
-
-        JSONObject activityActor = activity.getJSONObject("actor");
-        JSONObject activityObject = activity.getJSONObject("object");
+    private Document buildNotificationUpdatedDocument(Aggregate aggregate, Date now) {
+        // The most recent actors first, as if they had been pushed one by one.
+        List<String> userList = new ArrayList<>(aggregate.actors);
+        Collections.reverse(userList);
 
-        List<String> userList = Arrays.asList(activityActor.getString("id"));
-        Document actor = (new Document("$each", userList)).append("$position", 0);
+        Document actor = (new Document("$each", userList))
+                .append("$position", 0)
+                .append("$slice", MAX_WHO);
         Document updateInfo = (new Document())
-                .append("user", new ObjectId(user.getString("id")))
-                .append("type", user.getString("notificationType"))
-                .append("object", new Document("id", activityObject.getString("id"))
-                        .append("objectType", activityObject.getString("objectType")))
-                .append("updatedAt", cal.getTime());
-
-        if (activity.has("target")) {
-            JSONObject activityTarget = activity.getJSONObject("target");
+                .append("user", new ObjectId(aggregate.user.getString("id")))
+                .append("type", aggregate.user.getString("notificationType"))
+                .append("object", new Document("id", aggregate.object.getId())
+                        .append("objectType", aggregate.object.getObjectType()))
+                .append("updatedAt", now);
+
+        if (aggregate.target != null) {
             updateInfo.append(
-                    "target", (new Document("id", activityTarget.getString("id")))
-                            .append("objectType", activityTarget.get("objectType"))
+                    "target", (new Document("id", aggregate.target.getId()))
+                            .append("objectType", aggregate.target.getObjectType())
             );
         }
 
         Document updated = (new Document())
                 .append("$set", updateInfo)
-                .append("$inc", new Document("times", 1)) //increment times aggregated
+                .append("$inc", new Document("times", aggregate.tuples.size())) //increment times aggregated
                 .append("$push", new Document("who", actor))
         ;
 
         return updated;
     }
 
+    @Override
+    public void cleanup() {
+        if (!this.pending.isEmpty()) {
+            this.flush(this.pending.drain());
+        }
+        if (this.client != null) {
+            this.client.close();
+        }
+    }
+
+    /**
+     * Notifications of the same group in the window.
+     */
+    private static class Aggregate {
+        private final JSONObject user;
+        private final List<Tuple> tuples = new ArrayList<>();
+
+        /**
+         * Actors in the order of their last activity.
+         */
+        private final LinkedHashSet<String> actors = new LinkedHashSet<>();
+        private ActivityObject object;
+        private ActivityObject target;
+
+        private Aggregate(JSONObject user) {
+            this.user = user;
+        }
+
+        private void add(Tuple tuple, ActivityEnvelope activity) {
+            String actor = activity.getActor().getId();
+            this.actors.remove(actor);
+            this.actors.add(actor);
+
+            this.object = activity.getObject();
+            if (activity.getTarget() != null) {
+                this.target = activity.getTarget();
+            }
+            this.tuples.add(tuple);
+        }
+    }
 }
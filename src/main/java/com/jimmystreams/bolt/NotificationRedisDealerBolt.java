@@ -1,35 +1,106 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
 package com.jimmystreams.bolt;
 
+import com.jimmystreams.util.TupleBatch;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.apache.log4j.Logger;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Tuple;
+import org.apache.storm.utils.TupleUtils;
 import org.bson.Document;
 import redis.clients.jedis.HostAndPort;
-import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
 
 import java.util.*;
 
-public class NotificationRedisDealerBolt extends BaseRichBolt{
+/**
+ * Publish the notification pings of the users in their redis channel.
+ *
+ * A redis cluster broadcasts the messages published in any node, so a connection to any node is enough.
+ * The bolt keeps a connection per node and sends each flush through the next one,
+ * the connections are only given back to their pool when they fail or the bolt is cleaned up.
+ *
+ * In batching mode the tuples are buffered and the PUBLISH commands sent in one pipeline.
+ * A ping only tells the user there is something new of a type, so repeated pings
+ * of the same user and type in a batch are published once.
+ * Tuples with a "count" field add it to the message.
+ */
+public class NotificationRedisDealerBolt extends BaseRichBolt {
+    /**
+     * Amount of tuples published per flush. Set to zero (or one) for publishing per tuple.
+     */
+    private int batchSize = 0;
+
+    /**
+     * Maximum time (ms) a tuple can wait in the batch.
+     */
+    private int batchLatency = 1000;
+
+    private final Map<String, Integer> jedisClusterNodes;
 
-    private OutputCollector collector;
-    private JedisCluster client;
-    private Map<String, Integer> jedisClusterNodes;
+    private transient OutputCollector collector;
+    private transient JedisSlotBasedConnectionHandler connections;
+    private transient Map<String, Jedis> connected;
+    private transient Iterator<String> nextNode;
+    private transient TupleBatch pending;
 
+    private final static Logger logger = Logger.getLogger(NotificationRedisDealerBolt.class);
+
+    /**
+     * Default constructor.
+     *
+     * @param nodes The initial nodes of the cluster, port by host.
+     */
     public NotificationRedisDealerBolt(Map<String, Integer> nodes) {
         this.jedisClusterNodes = nodes;
     }
 
+    /**
+     * Enable the batching mode.
+     *
+     * @param batchSize    Amount of tuples published per flush.
+     * @param batchLatency Maximum time (ms) a tuple can wait before being published.
+     *
+     * @return The bolt.
+     */
+    public NotificationRedisDealerBolt withBatching(int batchSize, int batchLatency) {
+        this.batchSize = batchSize;
+        this.batchLatency = batchLatency;
+        return this;
+    }
+
     @Override
     public void prepare(Map map, TopologyContext topologyContext, OutputCollector outputCollector) {
         Set<HostAndPort> nodes = new HashSet<>();
         for (Map.Entry<String, Integer> entry : this.jedisClusterNodes.entrySet()) {
             nodes.add(new HostAndPort(entry.getKey(), entry.getValue()));
         }
-        this.client = new JedisCluster(nodes);
+
+        this.connections = new JedisSlotBasedConnectionHandler(nodes, new GenericObjectPoolConfig(), 2000);
+        this.connected = new HashMap<>();
+        this.nextNode = Collections.emptyIterator();
         this.collector = outputCollector;
+
+        if (this.isBatching()) {
+            this.pending = new TupleBatch(this.batchSize, this.batchLatency);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return this.isBatching() ? TupleBatch.tickConfiguration(this.batchLatency) : null;
     }
 
     @Override
@@ -37,18 +108,137 @@ public class NotificationRedisDealerBolt extends BaseRichBolt{
 
     @Override
     public void execute(Tuple tuple) {
-        Map<String, JedisPool> nodeMap = this.client.getClusterNodes();
+        if (!this.isBatching()) {
+            if (!TupleUtils.isTick(tuple)) {
+                this.flush(Collections.singletonList(tuple));
+            }
+            return;
+        }
+
+        if (!TupleUtils.isTick(tuple)) {
+            this.pending.add(tuple);
+        }
+
+        if (this.pending.isReady()) {
+            this.flush(this.pending.drain());
+        }
+    }
+
+    /**
+     * Publish the pings of a batch in one pipeline.
+     * The tuples are acknowledged once the pipeline replies, or failed all together.
+     *
+     * @param tuples The batch.
+     */
+    private void flush(List<Tuple> tuples) {
+        // Message by channel and type, in arrival order.
+        Map<List<String>, Document> messages = new LinkedHashMap<>();
+        for (Tuple tuple : tuples) {
+            String user = tuple.getStringByField("user");
+            String messageType = tuple.getStringByField("messageType");
+            List<String> key = Arrays.asList(user, messageType);
+
+            Document message = messages.get(key);
+            if (message == null) {
+                message = new Document("type", messageType);
+                messages.put(key, message);
+            }
+
+            // Coalesced signals tell how many updates they stand for.
+            if (tuple.contains("count")) {
+                message.put("count", message.getInteger("count", 0) + tuple.getIntegerByField("count"));
+            }
+        }
 
-        List<JedisPool> nodePoolList = new ArrayList<>(nodeMap.values());
-        Collections.shuffle(nodePoolList);
+        String node = null;
+        try {
+            node = this.nextNode();
+            Pipeline pipeline = this.connected.get(node).pipelined();
 
-        JedisPool one = nodePoolList.get(0);
+            for (Map.Entry<List<String>, Document> message : messages.entrySet()) {
+                pipeline.publish(message.getKey().get(0), message.getValue().toString());
+            }
+            pipeline.sync();
+        }
+        catch (JedisException e) {
+            logger.error(String.format("Error publishing %d notifications through %s: %s", messages.size(), node, e.toString()));
+            this.disconnect(node);
+            this.connections.renewSlotCache();
+
+            for (Tuple tuple : tuples) {
+                this.collector.fail(tuple);
+            }
+            return;
+        }
+
+        if (messages.size() < tuples.size()) {
+            logger.debug(String.format("Published %d notifications for %d tuples", messages.size(), tuples.size()));
+        }
+
+        for (Tuple tuple : tuples) {
+            this.collector.ack(tuple);
+        }
+    }
+
+    /**
+     * Take the next node of the cluster, connecting to it the first time.
+     *
+     * @return The node, its connection is in the connected map.
+     */
+    private String nextNode() {
+        if (!this.nextNode.hasNext()) {
+            this.nextNode = new ArrayList<>(this.connections.getNodes().keySet()).iterator();
+            if (!this.nextNode.hasNext()) {
+                throw new JedisException("No redis nodes available");
+            }
+        }
+
+        String node = this.nextNode.next();
+        if (!this.connected.containsKey(node)) {
+            JedisPool pool = this.connections.getNodes().get(node);
+            if (pool == null) {
+                throw new JedisException(String.format("Node %s left the cluster", node));
+            }
+            this.connected.put(node, pool.getResource());
+        }
+
+        return node;
+    }
 
-        String user = tuple.getStringByField("user");
-        String messageType = tuple.getStringByField("messageType");
-        Document message = new Document("type", messageType);
-        one.getResource().publish(user, message.toString());
+    /**
+     * Give the connection of a node back to its pool, it is opened again the next time.
+     *
+     * @param node The node, or null.
+     */
+    private void disconnect(String node) {
+        Jedis jedis = node != null ? this.connected.remove(node) : null;
+        if (jedis != null) {
+            try {
+                jedis.close();
+            }
+            catch (JedisException e) {
+                logger.warn(String.format("Error closing connection to %s: %s", node, e.toString()));
+            }
+        }
+    }
 
-        this.collector.ack(tuple);
+    private boolean isBatching() {
+        return this.batchSize > 1;
+    }
+
+    @Override
+    public void cleanup() {
+        if (this.pending != null && !this.pending.isEmpty()) {
+            this.flush(this.pending.drain());
+        }
+
+        if (this.connections != null) {
+            for (String node : new ArrayList<>(this.connected.keySet())) {
+                this.disconnect(node);
+            }
+            for (JedisPool pool : this.connections.getNodes().values()) {
+                pool.destroy();
+            }
+        }
     }
 }
@@ -6,28 +6,41 @@
 
 package com.jimmystreams.bolt;
 
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.util.TupleBatch;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.apache.storm.redis.bolt.AbstractRedisBolt;
 import org.apache.storm.redis.common.config.JedisClusterConfig;
-import org.apache.storm.redis.common.config.JedisPoolConfig;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
+import org.apache.storm.utils.TupleUtils;
 import org.apache.log4j.Logger;
 
 import org.apache.storm.tuple.Values;
-import org.json.JSONObject;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCommands;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-
-import java.util.Date;
-import java.util.Locale;
+import java.net.InetSocketAddress;
+import java.util.*;
 
 /**
  * Custom Redis bolt for storing activities in redis.
  * This mapper use the redis command ZADD to arrange the activities by date.
+ *
+ * In batching mode the tuples are buffered and written with one pipeline per cluster node,
+ * the tuples are acknowledged once the pipeline replies.
  */
 public class RedisUpdatesBolt extends AbstractRedisBolt {
     /**
@@ -35,6 +48,20 @@ public class RedisUpdatesBolt extends AbstractRedisBolt {
      */
     private int maxEntries = 0;
 
+    /**
+     * Amount of tuples written per flush. Set to zero (or one) for writing per tuple.
+     */
+    private int batchSize = 0;
+
+    /**
+     * Maximum time (ms) a tuple can wait in the batch.
+     */
+    private int batchLatency = 1000;
+
+    private final JedisClusterConfig clusterConfig;
+    private transient NodeConnectionHandler connections;
+    private transient TupleBatch pending;
+
     private static final String NOTIFICATION_MESSAGE_TYPE = "timeline";
 
     private final static Logger logger = Logger.getLogger(RedisUpdatesBolt.class);
@@ -47,6 +74,7 @@ public class RedisUpdatesBolt extends AbstractRedisBolt {
      */
     public RedisUpdatesBolt(JedisClusterConfig config, int maxEntries) {
         super(config);
+        this.clusterConfig = config;
         this.maxEntries = maxEntries;
     }
 
@@ -59,30 +87,75 @@ public class RedisUpdatesBolt extends AbstractRedisBolt {
         this(config, 0);
     }
 
+    /**
+     * Enable the batching mode.
+     *
+     * @param batchSize    Amount of tuples written per flush.
+     * @param batchLatency Maximum time (ms) a tuple can wait before being written.
+     *
+     * @return The bolt.
+     */
+    public RedisUpdatesBolt withBatching(int batchSize, int batchLatency) {
+        this.batchSize = batchSize;
+        this.batchLatency = batchLatency;
+        return this;
+    }
+
+    @Override
+    public void prepare(Map map, TopologyContext topologyContext, OutputCollector collector) {
+        super.prepare(map, topologyContext, collector);
+
+        if (this.isBatching()) {
+            Set<HostAndPort> nodes = new HashSet<>();
+            for (InetSocketAddress node : this.clusterConfig.getNodes()) {
+                nodes.add(new HostAndPort(node.getHostName(), node.getPort()));
+            }
+
+            this.connections = new NodeConnectionHandler(
+                    nodes, new GenericObjectPoolConfig(), this.clusterConfig.getTimeout());
+            this.pending = new TupleBatch(this.batchSize, this.batchLatency);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return this.isBatching() ? TupleBatch.tickConfiguration(this.batchLatency) : null;
+    }
+
     @Override
     public void execute(Tuple input) {
-        String stream = input.getStringByField("stream");
-        JSONObject activity = (JSONObject)input.getValueByField("activity");
-        String activity_id = activity.getString("aid");
+        if (!this.isBatching()) {
+            this.store(input);
+            return;
+        }
 
-        // Parse the published date.
-        DateFormat date_format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'", Locale.ENGLISH);
-        Date published = null;
+        if (!TupleUtils.isTick(input)) {
+            this.pending.add(input);
+        }
 
-        try {
-            published = date_format.parse(activity.getString("published"));
-        } catch (ParseException e) {
-            logger.error(String.format("Error mapping activity %s to redis: %s", activity_id, e.toString()));
+        if (this.pending.isReady()) {
+            this.flush(this.pending.drain());
         }
+    }
+
+    /**
+     * Store a single activity in the recent list of the stream.
+     *
+     * @param input The tuple.
+     */
+    private void store(Tuple input) {
+        String stream = input.getStringByField("stream");
+        ActivityEnvelope activity = (ActivityEnvelope)input.getValueByField("activity");
+        String activity_id = activity.getAid();
 
         JedisCommands jedisCommand = getInstance();
 
         // Only perform the redis command if the published was parsed correctly.
-        if (published != null) {
+        if (activity.hasPublished()) {
             // ZADD command will add a value to the key using an score for sorting.
             // The score used is the timestamp of when the activity was published.
             logger.info(String.format("Storing activity %s in recent list of stream %s", activity_id, stream));
-            jedisCommand.zadd(stream, published.getTime(), activity.toString());
+            jedisCommand.zadd(stream, activity.getPublished(), activity.getJson());
 
             // Limit the storage.
             if (this.maxEntries != 0) {
@@ -90,6 +163,9 @@ public class RedisUpdatesBolt extends AbstractRedisBolt {
                 jedisCommand.zremrangeByRank(stream, size, size-2);
             }
         }
+        else {
+            logger.error(String.format("Error mapping activity %s to redis: invalid published date", activity_id));
+        }
 
         this.collector.emit(input, new Values(stream, RedisUpdatesBolt.NOTIFICATION_MESSAGE_TYPE));
 
@@ -98,8 +174,246 @@ public class RedisUpdatesBolt extends AbstractRedisBolt {
         returnInstance(jedisCommand);
     }
 
+    /**
+     * Store a batch of activities.
+     * The tuples are grouped by the node that owns the slot of their stream, each node gets one pipeline.
+     * The tuples redirected because their slot moved are retried once, slot by slot.
+     *
+     * @param tuples The batch.
+     */
+    private void flush(List<Tuple> tuples) {
+        Map<JedisPool, List<Tuple>> nodes = new HashMap<>();
+        Map<Integer, List<Tuple>> unknown = new HashMap<>();
+
+        for (Tuple tuple : tuples) {
+            int slot = JedisClusterCRC16.getSlot(tuple.getStringByField("stream"));
+            JedisPool node = this.connections.getPoolFromSlot(slot);
+
+            // Slots without a known node are left to the connection handler.
+            if (node == null) {
+                group(unknown, slot, tuple);
+            }
+            else {
+                group(nodes, node, tuple);
+            }
+        }
+
+        logger.info(String.format("Storing %d activities in %d nodes", tuples.size(), nodes.size()));
+
+        List<Tuple> redirected = new ArrayList<>();
+        for (Map.Entry<JedisPool, List<Tuple>> entry : nodes.entrySet()) {
+            this.flushNode(entry.getKey(), entry.getValue(), redirected);
+        }
+
+        if (!redirected.isEmpty()) {
+            logger.warn(String.format("Retrying %d activities of moved slots", redirected.size()));
+            this.connections.renewSlotCache();
+
+            for (Tuple tuple : redirected) {
+                group(unknown, JedisClusterCRC16.getSlot(tuple.getStringByField("stream")), tuple);
+            }
+        }
+
+        for (Map.Entry<Integer, List<Tuple>> entry : unknown.entrySet()) {
+            this.flushSlot(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Send the commands of the tuples whose slots live in a node through one pipeline.
+     *
+     * @param node       The pool of the node.
+     * @param tuples     The tuples.
+     * @param redirected Receives the tuples answered with MOVED or ASK, to be retried by slot.
+     */
+    private void flushNode(JedisPool node, List<Tuple> tuples, List<Tuple> redirected) {
+        List<Response<Long>> responses;
+        Jedis jedis = null;
+
+        try {
+            jedis = node.getResource();
+            Pipeline pipeline = jedis.pipelined();
+            responses = this.write(pipeline, tuples);
+            pipeline.sync();
+        }
+        catch (JedisException e) {
+            logger.error(String.format("Error writing %d activities to a node: %s", tuples.size(), e.toString()));
+            this.connections.renewSlotCache();
+
+            for (Tuple tuple : tuples) {
+                this.collector.fail(tuple);
+            }
+            return;
+        }
+        finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+
+        for (int i = 0; i < tuples.size(); i++) {
+            Tuple tuple = tuples.get(i);
+
+            try {
+                if (responses.get(i) != null) {
+                    responses.get(i).get();
+                }
+            }
+            catch (JedisRedirectionException e) {
+                // The slot changed of node.
+                redirected.add(tuple);
+                continue;
+            }
+            catch (JedisException e) {
+                logger.error(String.format("Error storing activity in stream %s: %s", tuple.getStringByField("stream"), e.toString()));
+                this.collector.fail(tuple);
+                continue;
+            }
+
+            this.stored(tuple);
+        }
+    }
+
+    /**
+     * Send the ZADD (and trim) commands of a slot in one pipeline.
+     * Tuples are acknowledged individually once the pipeline replies.
+     *
+     * @param slot   The cluster slot.
+     * @param tuples The tuples whose stream lives in the slot.
+     */
+    private void flushSlot(int slot, List<Tuple> tuples) {
+        List<Response<Long>> responses;
+        Jedis jedis = null;
+
+        try {
+            jedis = this.connections.getConnectionFromSlot(slot);
+            Pipeline pipeline = jedis.pipelined();
+            responses = this.write(pipeline, tuples);
+            pipeline.sync();
+        }
+        catch (JedisException e) {
+            logger.error(String.format("Error writing %d activities to slot %d: %s", tuples.size(), slot, e.toString()));
+            this.connections.renewSlotCache();
+
+            for (Tuple tuple : tuples) {
+                this.collector.fail(tuple);
+            }
+            return;
+        }
+        finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+
+        boolean renewSlots = false;
+        for (int i = 0; i < tuples.size(); i++) {
+            Tuple tuple = tuples.get(i);
+
+            try {
+                if (responses.get(i) != null) {
+                    responses.get(i).get();
+                }
+            }
+            catch (JedisException e) {
+                // Usually a MOVED reply, the slot changed of node again. Storm replays the tuple.
+                logger.error(String.format("Error storing activity in stream %s: %s", tuple.getStringByField("stream"), e.toString()));
+                renewSlots = true;
+                this.collector.fail(tuple);
+                continue;
+            }
+
+            this.stored(tuple);
+        }
+
+        if (renewSlots) {
+            this.connections.renewSlotCache();
+        }
+    }
+
+    /**
+     * Queue the commands of the tuples in a pipeline.
+     *
+     * @param pipeline The pipeline.
+     * @param tuples   The tuples.
+     *
+     * @return The reply of the ZADD of each tuple, null for the tuples skipped.
+     */
+    private List<Response<Long>> write(Pipeline pipeline, List<Tuple> tuples) {
+        List<Response<Long>> responses = new ArrayList<>(tuples.size());
+
+        for (Tuple tuple : tuples) {
+            byte[] stream = SafeEncoder.encode(tuple.getStringByField("stream"));
+            ActivityEnvelope activity = (ActivityEnvelope)tuple.getValueByField("activity");
+
+            // Activities with wrong dates are skipped but acknowledged, as in the single mode.
+            if (!activity.hasPublished()) {
+                logger.error(String.format("Error mapping activity %s to redis: invalid published date", activity.getAid()));
+                responses.add(null);
+                continue;
+            }
+
+            // The raw activity is stored as is, without serializing it again.
+            responses.add(pipeline.zadd(stream, activity.getPublished(), activity.getRaw()));
+
+            // Limit the storage.
+            if (this.maxEntries != 0) {
+                int size = -maxEntries;
+                pipeline.zremrangeByRank(stream, size, size-2);
+            }
+        }
+
+        return responses;
+    }
+
+    private void stored(Tuple tuple) {
+        this.collector.emit(tuple, new Values(tuple.getStringByField("stream"), RedisUpdatesBolt.NOTIFICATION_MESSAGE_TYPE));
+        this.collector.ack(tuple);
+    }
+
+    private static <K> void group(Map<K, List<Tuple>> groups, K key, Tuple tuple) {
+        List<Tuple> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.put(key, group);
+        }
+        group.add(tuple);
+    }
+
+    private boolean isBatching() {
+        return this.batchSize > 1;
+    }
+
+    @Override
+    public void cleanup() {
+        if (this.connections != null) {
+            for (JedisPool pool : this.connections.getNodes().values()) {
+                pool.destroy();
+            }
+        }
+        super.cleanup();
+    }
+
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
         declarer.declare(new Fields("user", "messageType"));
     }
+
+    /**
+     * Connection handler that tells which node owns a slot, so commands can be grouped by node.
+     */
+    private static class NodeConnectionHandler extends JedisSlotBasedConnectionHandler {
+        private NodeConnectionHandler(Set<HostAndPort> nodes, GenericObjectPoolConfig poolConfig, int timeout) {
+            super(nodes, poolConfig, timeout);
+        }
+
+        /**
+         * @param slot The cluster slot.
+         *
+         * @return The pool of the node that owns the slot, or null when it is not known yet.
+         */
+        private JedisPool getPoolFromSlot(int slot) {
+            return this.cache.getSlotPool(slot);
+        }
+    }
 }
@@ -1,39 +1,192 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
 package com.jimmystreams.bolt;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.AmazonSNSAsyncClient;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.jimmystreams.util.TupleBatch;
 import org.apache.log4j.Logger;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Tuple;
+import org.apache.storm.utils.TupleUtils;
 import org.bson.Document;
 
-import com.amazonaws.services.sns.AmazonSNSClient;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Publish the notifications of the users in a SNS topic.
+ *
+ * The messages are published asynchronously, at most maxInFlight at the same time.
+ * The client threads only queue the outcome, the tuples are acknowledged (or failed)
+ * from the executor thread on the next tuple or tick.
+ *
+ * In batching mode the tuples are buffered and published together when the batch is full or old enough.
+ * SNS has no batch publish in this SDK, so every tuple is still a request of its own.
+ *
+ * Override {@link #createClient()} to publish through another client, like a local stub.
+ */
 public class SNSMessageDealerBolt extends BaseRichBolt {
+    /**
+     * Time (ms) waited for a free slot before checking the completed requests again.
+     */
+    private static final long SLOT_WAIT = 100;
 
     private final static Logger logger = Logger.getLogger(SNSMessageDealerBolt.class);
-    private AmazonSNSClient snsClient;
-    private OutputCollector collector;
-    private String topic;
+
+    private final String topic;
+    private String endpoint;
+
+    /**
+     * Maximum amount of requests waiting for SNS.
+     */
+    private int maxInFlight = 16;
+
+    /**
+     * Amount of tuples published per flush. Set to zero (or one) for publishing per tuple.
+     */
+    private int batchSize = 0;
+
+    /**
+     * Maximum time (ms) a tuple can wait in the batch.
+     */
+    private int batchLatency = 1000;
+
+    private transient AmazonSNSAsync snsClient;
+    private transient OutputCollector collector;
+    private transient Semaphore slots;
+    private transient Queue<Tuple> completed;
+    private transient Queue<Tuple> errors;
+    private transient TupleBatch pending;
 
     public SNSMessageDealerBolt(String topic) {
         this.topic = topic;
     }
 
+    /**
+     * Limit the requests waiting for SNS.
+     *
+     * @param maxInFlight Maximum amount of requests waiting for SNS.
+     *
+     * @return The bolt.
+     */
+    public SNSMessageDealerBolt withMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Enable the batching mode.
+     *
+     * @param batchSize    Amount of tuples published per flush.
+     * @param batchLatency Maximum time (ms) a tuple can wait before being published.
+     *
+     * @return The bolt.
+     */
+    public SNSMessageDealerBolt withBatching(int batchSize, int batchLatency) {
+        this.batchSize = batchSize;
+        this.batchLatency = batchLatency;
+        return this;
+    }
+
+    /**
+     * Publish to another endpoint than the one of the default region.
+     *
+     * @param endpoint The SNS endpoint, e.g. a local stub.
+     *
+     * @return The bolt.
+     */
+    public SNSMessageDealerBolt withEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+        return this;
+    }
+
     @Override
     public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) { }
 
     @Override
     public void prepare(Map map, TopologyContext topologyContext, OutputCollector outputCollector) {
         this.collector = outputCollector;
-        this.snsClient = new AmazonSNSClient(new ProfileCredentialsProvider());
+        this.snsClient = this.createClient();
+        this.slots = new Semaphore(Math.max(1, this.maxInFlight));
+        this.completed = new ConcurrentLinkedQueue<>();
+        this.errors = new ConcurrentLinkedQueue<>();
+
+        if (this.isBatching()) {
+            this.pending = new TupleBatch(this.batchSize, this.batchLatency);
+        }
+    }
+
+    /**
+     * @return The SNS client, with a thread per request in flight.
+     */
+    protected AmazonSNSAsync createClient() {
+        AmazonSNSAsyncClient client = new AmazonSNSAsyncClient(
+                new ProfileCredentialsProvider(), Executors.newFixedThreadPool(Math.max(1, this.maxInFlight)));
+
+        if (this.endpoint != null) {
+            client.setEndpoint(this.endpoint);
+        }
+        return client;
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        // Ticks also acknowledge the tuples completed while no tuple arrives.
+        return TupleBatch.tickConfiguration(this.isBatching() ? this.batchLatency : 1000);
     }
 
     @Override
     public void execute(Tuple tuple) {
+        this.complete();
+
+        if (!this.isBatching()) {
+            if (!TupleUtils.isTick(tuple)) {
+                this.flush(Collections.singletonList(tuple));
+            }
+            return;
+        }
+
+        if (!TupleUtils.isTick(tuple)) {
+            this.pending.add(tuple);
+        }
+
+        if (this.pending.isReady()) {
+            this.flush(this.pending.drain());
+        }
+    }
+
+    /**
+     * Publish the tuples, waiting for a free slot when too many requests are in flight.
+     *
+     * @param tuples The tuples.
+     */
+    private void flush(List<Tuple> tuples) {
+        for (Tuple tuple : tuples) {
+            this.acquireSlot();
+            this.publish(tuple);
+        }
+    }
+
+    private void publish(final Tuple tuple) {
         String user = tuple.getStringByField("user");
         String notificationType = tuple.getStringByField("messageType");
 
@@ -41,9 +194,84 @@ public class SNSMessageDealerBolt extends BaseRichBolt {
                 .append("user", user)
                 .append("type", notificationType);
 
-        this.snsClient.publish(this.topic, message.toString());
+        try {
+            this.snsClient.publishAsync(new PublishRequest(this.topic, message.toString()),
+                    new AsyncHandler<PublishRequest, PublishResult>() {
+                        @Override
+                        public void onError(Exception e) {
+                            logger.error(String.format("AWS Exception publishing notification of %s: %s", user, e.toString()));
+                            errors.add(tuple);
+                            slots.release();
+                        }
+
+                        @Override
+                        public void onSuccess(PublishRequest request, PublishResult result) {
+                            completed.add(tuple);
+                            slots.release();
+                        }
+                    });
+        }
+        catch (AmazonClientException e) {
+            logger.error(String.format("AWS Exception %s", e.toString()));
+            this.slots.release();
+            this.collector.fail(tuple);
+        }
+    }
+
+    /**
+     * Wait for a request in flight to finish, acknowledging the completed ones meanwhile.
+     */
+    private void acquireSlot() {
+        try {
+            while (!this.slots.tryAcquire(SLOT_WAIT, TimeUnit.MILLISECONDS)) {
+                this.complete();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Acknowledge the published tuples and fail the rest.
+     */
+    private void complete() {
+        Tuple tuple;
+        while ((tuple = this.completed.poll()) != null) {
+            this.collector.ack(tuple);
+        }
+        while ((tuple = this.errors.poll()) != null) {
+            this.collector.fail(tuple);
+        }
+    }
+
+    private boolean isBatching() {
+        return this.batchSize > 1;
+    }
+
+    @Override
+    public void cleanup() {
+        if (this.pending != null && !this.pending.isEmpty()) {
+            this.flush(this.pending.drain());
+        }
+
+        // Wait for the requests in flight.
+        try {
+            int permits = Math.max(1, this.maxInFlight);
+            if (this.slots != null && !this.slots.tryAcquire(permits, 10, TimeUnit.SECONDS)) {
+                logger.warn("Requests still in flight on cleanup");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-        // Ack the tuple.
-        this.collector.ack(tuple);
+        if (this.collector != null) {
+            this.complete();
+        }
+        if (this.snsClient != null) {
+            this.snsClient.shutdown();
+        }
     }
 }
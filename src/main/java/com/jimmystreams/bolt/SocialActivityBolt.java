@@ -1,4 +1,3 @@
-
 /**
  * jimmy-streams-api
  * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
@@ -8,32 +7,110 @@
 package com.jimmystreams.bolt;
 
 
-import com.jimmystreams.social.ActivityContext;
-import com.jimmystreams.social.OrientDBGraph;
-import com.jimmystreams.social.strategies.*;
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.social.*;
+import com.jimmystreams.social.strategies.NoStrategy;
+import com.jimmystreams.util.TupleBatch;
+import com.orientechnologies.common.concur.ONeedRetryException;
 import com.tinkerpop.blueprints.impls.orient.OrientGraph;
 import org.apache.log4j.Logger;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
-import org.json.JSONObject;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.TupleUtils;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.*;
 
+/**
+ * Bolt that applies the activities to the social graph.
+ * Activities are applied in a shared transaction that is committed when the batch is full,
+ * the oldest activity waited too long or a tick tuple arrives; the activities are acknowledged after the commit.
+ * When the group commit conflicts, the activities are applied and committed again one by one.
+ *
+ * Score increments of the configured verbs are accumulated and written periodically, one update per vertex,
+ * only when no batch is open. The activities are acknowledged after their scores are written.
+ * The updates are idempotent (see {@link ScoreAccumulator#flush}): a flush that fails keeps the increments
+ * not written and is retried with the same id before new increments are taken, the activities are never
+ * replayed because of it, so the changes they committed are not applied twice.
+ *
+ * The record ids of the vertices are cached, the cache is discarded when a transaction is rolled back.
+ *
+ * Strategies are found by verb in the {@link StrategyRegistry}, they are created once and shared.
+ *
+ * With several tasks the activities must be grouped by "key" (see {@link SocialPartitionBolt}),
+ * and the bolt must receive its own "deferredScores" stream grouped by "key".
+ * Accumulated increments, and every increment of a vertex other than the key of the activity,
+ * are then sent to the task owning the vertex, so the score of a vertex is always written by the same task.
+ */
 public class SocialActivityBolt extends BaseRichBolt
 {
+    public static final String DEFERRED_SCORES_STREAM = "deferredScores";
+
+    /**
+     * Attempts to commit an activity alone before failing it.
+     */
+    private static final int MAX_ATTEMPTS = 3;
 
     private OrientGraph graph;
-    private ActivityContext context;
+    private StrategyRegistry strategies;
     private OutputCollector _collector;
+    private TupleBatch pending;
+
+    // Increments of the open transaction, and increments committed waiting to be written.
+    private ScoreAccumulator transactionScores;
+    private ScoreAccumulator scores;
+    private List<Tuple> awaitingScores;
+
+    // Increments being written and their tuples, kept until the write succeeds.
+    private ScoreAccumulator writingScores;
+    private List<Tuple> writingTuples;
+    private String flushId;
+
+    // Increments of the vertices owned by the task, sent by other tasks.
+    private boolean deferScores;
+    private ScoreAccumulator ownedScores;
+    private List<Tuple> deferredScores;
+    private long lastScoreFlush;
+    private VertexCache vertices;
+
+    // Sessions given to the strategies, writing the scores in the transaction or accumulating them.
+    private GraphSession session;
+    private GraphSession accumulatingSession;
 
     private String dsn;
     private String user;
     private String password;
 
+    /**
+     * Amount of activities per transaction.
+     */
+    private int batchSize = 1;
+
+    /**
+     * Maximum time (ms) an activity waits for the commit.
+     */
+    private int batchLatency = 1000;
+
+    /**
+     * Verbs whose score increments are accumulated.
+     */
+    private Set<String> accumulatedVerbs = new HashSet<>();
+
+    /**
+     * Time (ms) between writes of the accumulated scores.
+     */
+    private int scoreFlushInterval = 1000;
+
+    /**
+     * Maximum amount of vertices whose record id is cached.
+     */
+    private int vertexCacheSize = 10000;
+
     public SocialActivityBolt(String dsn, String user, String password) {
         this.dsn = dsn;
         this.user = user;
@@ -42,13 +119,67 @@ public class SocialActivityBolt extends BaseRichBolt
 
     private final static Logger logger = Logger.getLogger(SocialActivityBolt.class);
 
+    /**
+     * Configure the group commit.
+     *
+     * @param batchSize    Amount of activities per transaction. One commits every activity alone.
+     * @param batchLatency Maximum time (ms) an activity waits for the commit.
+     *
+     * @return The bolt.
+     */
+    public SocialActivityBolt withBatching(int batchSize, int batchLatency) {
+        this.batchSize = batchSize;
+        this.batchLatency = batchLatency;
+        return this;
+    }
+
+    /**
+     * Accumulate the score increments of some verbs.
+     *
+     * @param verbs         The verbs, the scores of other verbs are written in the transaction.
+     * @param flushInterval Time (ms) between writes of the accumulated scores.
+     *
+     * @return The bolt.
+     */
+    public SocialActivityBolt withScoreAccumulation(Collection<String> verbs, int flushInterval) {
+        this.accumulatedVerbs = new HashSet<>(verbs);
+        this.scoreFlushInterval = flushInterval;
+        return this;
+    }
+
+    /**
+     * @param size Maximum amount of vertices whose record id is cached.
+     *
+     * @return The bolt.
+     */
+    public SocialActivityBolt withVertexCache(int size) {
+        this.vertexCacheSize = size;
+        return this;
+    }
+
     @Override
     public void prepare(Map map, TopologyContext topologyContext, OutputCollector outputCollector)
     {
         try {
             this._collector = outputCollector;
+            this.pending = new TupleBatch(this.batchSize, this.batchLatency);
+            this.transactionScores = new ScoreAccumulator();
+            this.scores = new ScoreAccumulator();
+            this.awaitingScores = new ArrayList<>();
+            this.writingScores = new ScoreAccumulator();
+            this.writingTuples = new ArrayList<>();
+            this.deferScores = topologyContext.getComponentTasks(topologyContext.getThisComponentId()).size() > 1;
+            this.ownedScores = new ScoreAccumulator();
+            this.deferredScores = new ArrayList<>();
+            this.lastScoreFlush = System.currentTimeMillis();
+            this.vertices = new VertexCache(this.vertexCacheSize);
             this.graph = OrientDBGraph.create(this.dsn, this.user, this.password);
-            this.context = new ActivityContext();
+            OrientDBGraph.ensureIdIndexes(this.graph, "User", "Article", "Technology");
+            this.strategies = StrategyRegistry.load(new NoStrategy());
+            // The scores of the vertices owned by other tasks are sent to them, whatever the verb.
+            ScoreAccumulator deferred = this.deferScores ? this.transactionScores : null;
+            this.session = new GraphSession(this.graph, this.vertices, null, deferred);
+            this.accumulatingSession = new GraphSession(this.graph, this.vertices, this.transactionScores, deferred);
         }
         catch (IOException e)
         {
@@ -57,49 +188,246 @@ public class SocialActivityBolt extends BaseRichBolt
     }
 
     @Override
-    public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) { }
+    public Map<String, Object> getComponentConfiguration() {
+        return TupleBatch.tickConfiguration(Math.min(this.batchLatency, this.scoreFlushInterval));
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
+        outputFieldsDeclarer.declareStream(DEFERRED_SCORES_STREAM, new Fields("key", "vertexClass", "id", "increment"));
+    }
 
     @Override
     public void execute(Tuple tuple)
     {
-        JSONObject activity = (JSONObject)tuple.getValueByField("activity");
-        String activityVerb = (String)activity.get("verb");
-
-        logger.info(String.format("Select strategy based on the activity verb"));
-        String strategy = activityVerb;
-        switch (activityVerb) {
-            case "publish":
-                context.setVerbStrategy(new PublishVerbStrategy(this.graph));
-                break;
-            case "follow":
-                context.setVerbStrategy(new FollowVerbStrategy(this.graph));
-                break;
-            case "comment":
-                context.setVerbStrategy(new CommentVerbStrategy(this.graph));
-                break;
-            case "read":
-                context.setVerbStrategy(new ReadVerbStrategy(this.graph));
-                break;
-            case "share":
-                context.setVerbStrategy(new ShareVerbStrategy(this.graph));
-                break;
-            case "review":
-                context.setVerbStrategy(new ReviewVerbStrategy(this.graph));
-                break;
-            case "upvote" :
-            case "downvote" :
-                context.setVerbStrategy(new VoteVerbStrategy(this.graph));
-                break;
-            default:
-                strategy = "default";
-                context.setVerbStrategy(new NoStrategy(this.graph));
-        }
-
-        logger.info(String.format("%s strategy selected", strategy));
-        context.executeStrategy(activity);
-
-
-        // Ack the tuple.
-        this._collector.ack(tuple);
+        // Tasks sharing the executor thread have their own graph.
+        this.graph.makeActive();
+
+        if (tuple.getSourceStreamId().equals(DEFERRED_SCORES_STREAM)) {
+            this.ownedScores.add(tuple.getStringByField("vertexClass"), tuple.getValueByField("id"),
+                    tuple.getDoubleByField("increment"));
+            this.deferredScores.add(tuple);
+        }
+        else if (!TupleUtils.isTick(tuple)) {
+            try {
+                this.apply(tuple);
+                this.pending.add(tuple);
+            }
+            catch (RuntimeException e) {
+                // The shared transaction cannot be trusted anymore.
+                logger.error(String.format("Error applying activity to the graph: %s", e.toString()));
+                this.rollback();
+                this._collector.fail(tuple);
+                this.commitOneByOne(this.pending.drain());
+            }
+        }
+
+        if (this.pending.isReady()) {
+            this.commit(this.pending.drain());
+        }
+
+        // Never commit the scores with activities of the open batch, wait for the batch commit.
+        if (this.pending.isEmpty() && System.currentTimeMillis() - this.lastScoreFlush >= this.scoreFlushInterval) {
+            this.flushScores();
+        }
+    }
+
+    /**
+     * Apply an activity to the graph in the current transaction.
+     *
+     * @param tuple The activity.
+     */
+    private void apply(Tuple tuple)
+    {
+        ActivityEnvelope envelope = (ActivityEnvelope)tuple.getValueByField("activity");
+        String activityVerb = envelope.getVerb();
+
+        ActivityVerbStrategy strategy = this.strategies.get(activityVerb);
+        GraphSession session = this.accumulatedVerbs.contains(activityVerb) ? this.accumulatingSession : this.session;
+
+        session.setPartitionKey(tuple.contains("key") ? tuple.getStringByField("key") : null);
+
+        logger.info(String.format("%s strategy selected", strategy.getClass().getSimpleName()));
+        // Strategies may modify the activity, work on a copy.
+        strategy.handleActivity(session, envelope.toJSONObject());
+    }
+
+    /**
+     * Commit the transaction of a batch and ack its activities.
+     *
+     * @param tuples The activities applied in the transaction.
+     */
+    private void commit(List<Tuple> tuples)
+    {
+        try {
+            logger.info(String.format("Commit %d activities to the graph", tuples.size()));
+            this.graph.commit();
+        }
+        catch (ONeedRetryException e) {
+            // Another task changed the same vertices, retry every activity alone.
+            logger.warn(String.format("Conflict committing %d activities: %s", tuples.size(), e.toString()));
+            this.rollback();
+            this.commitOneByOne(tuples);
+            return;
+        }
+        catch (RuntimeException e) {
+            logger.error(String.format("Error committing %d activities: %s", tuples.size(), e.toString()));
+            this.rollback();
+            for (Tuple tuple : tuples) {
+                this._collector.fail(tuple);
+            }
+            return;
+        }
+
+        this.committed(tuples);
+    }
+
+    /**
+     * Apply and commit the activities one transaction each.
+     *
+     * @param tuples The activities.
+     */
+    private void commitOneByOne(List<Tuple> tuples)
+    {
+        for (Tuple tuple : tuples) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    this.apply(tuple);
+                    this.graph.commit();
+                    this.committed(Collections.singletonList(tuple));
+                    break;
+                }
+                catch (ONeedRetryException e) {
+                    this.rollback();
+                    if (attempt >= MAX_ATTEMPTS) {
+                        logger.error(String.format("Conflict committing activity after %d attempts: %s", attempt, e.toString()));
+                        this._collector.fail(tuple);
+                        break;
+                    }
+                }
+                catch (RuntimeException e) {
+                    logger.error(String.format("Error committing activity: %s", e.toString()));
+                    this.rollback();
+                    this._collector.fail(tuple);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ack the activities committed, or keep them until their scores are written.
+     *
+     * @param tuples The activities.
+     */
+    private void committed(List<Tuple> tuples)
+    {
+        this.vertices.committed();
+
+        if (this.transactionScores.isEmpty() && this.awaitingScores.isEmpty()) {
+            for (Tuple tuple : tuples) {
+                this._collector.ack(tuple);
+            }
+            return;
+        }
+
+        this.transactionScores.moveTo(this.scores);
+        this.awaitingScores.addAll(tuples);
+    }
+
+    /**
+     * Write the accumulated scores and ack the activities waiting for them.
+     * With several tasks, the increments are sent to their owners first, the activities
+     * are anchored to them so they complete when the owners write the scores.
+     * Called only when no batch is open.
+     */
+    private void flushScores()
+    {
+        this.lastScoreFlush = System.currentTimeMillis();
+
+        if (this.deferScores) {
+            if (!this.awaitingScores.isEmpty()) {
+                this.scores.drain((vertexClass, id, increment) ->
+                        this._collector.emit(DEFERRED_SCORES_STREAM, this.awaitingScores,
+                                new Values(String.valueOf(id), vertexClass, id, increment)));
+
+                for (Tuple tuple : this.awaitingScores) {
+                    this._collector.ack(tuple);
+                }
+                this.awaitingScores.clear();
+            }
+
+            this.writeScores(this.ownedScores, this.deferredScores);
+        }
+        else {
+            this.writeScores(this.scores, this.awaitingScores);
+        }
+    }
+
+    /**
+     * Write the increments, no batch may be open.
+     * A write that failed is retried first, with the same increments and flush id; the new increments
+     * and tuples wait for the next write.
+     *
+     * @param scores The increments to write.
+     * @param tuples The tuples acknowledged when the increments are written.
+     */
+    private void writeScores(ScoreAccumulator scores, List<Tuple> tuples)
+    {
+        if (this.writingTuples.isEmpty()) {
+            if (tuples.isEmpty()) {
+                return;
+            }
+
+            scores.moveTo(this.writingScores);
+            this.writingTuples.addAll(tuples);
+            tuples.clear();
+            this.flushId = UUID.randomUUID().toString();
+        }
+
+        try {
+            this.writingScores.flush(this.graph, this.flushId);
+        }
+        catch (RuntimeException e) {
+            logger.error(String.format("Error writing scores of %d tuples, retrying on the next flush: %s",
+                    this.writingTuples.size(), e.toString()));
+            return;
+        }
+        finally {
+            // The updates changed the records behind the transaction.
+            this.graph.getRawGraph().getLocalCache().clear();
+        }
+
+        for (Tuple tuple : this.writingTuples) {
+            this._collector.ack(tuple);
+        }
+        this.writingTuples.clear();
+    }
+
+    /**
+     * Discard the transaction and the cached records, they could be older than the database.
+     */
+    private void rollback()
+    {
+        this.transactionScores.clear();
+        this.vertices.rolledBack();
+        try {
+            this.graph.rollback();
+        }
+        catch (RuntimeException e) {
+            logger.warn(String.format("Error rolling back the graph transaction: %s", e.toString()));
+        }
+        this.graph.getRawGraph().getLocalCache().clear();
+    }
+
+    @Override
+    public void cleanup()
+    {
+        // Do not lose the activities applied but not committed.
+        if (!this.pending.isEmpty()) {
+            this.commit(this.pending.drain());
+        }
+        this.flushScores();
+        this.graph.shutdown();
     }
 }
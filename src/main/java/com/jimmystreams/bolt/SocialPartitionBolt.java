@@ -0,0 +1,77 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.bolt;
+
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.activity.ActivityObject;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bolt that assigns every activity the id of the vertex it contends for the most,
+ * so the social bolt can group by it and the writes to a hot vertex come from a single task.
+ *
+ * Reads and votes are keyed by the article, shares, comments and reviews by their target,
+ * the rest of the activities by the actor.
+ */
+public class SocialPartitionBolt extends BaseRichBolt {
+    private static final Set<String> objectVerbs = new HashSet<>(Arrays.asList("read", "upvote", "downvote"));
+    private static final Set<String> targetVerbs = new HashSet<>(Arrays.asList("share", "comment", "review"));
+
+    private OutputCollector _collector;
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(new Fields("key", "activity"));
+    }
+
+    @Override
+    public void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
+        this._collector = collector;
+    }
+
+    @Override
+    public void execute(Tuple input) {
+        ActivityEnvelope activity = (ActivityEnvelope)input.getValueByField("activity");
+
+        this._collector.emit(input, new Values(getPartitionKey(activity), activity));
+        this._collector.ack(input);
+    }
+
+    /**
+     * @param activity The activity.
+     *
+     * @return The id of the vertex the activity is grouped by.
+     */
+    static String getPartitionKey(ActivityEnvelope activity) {
+        ActivityObject hot = null;
+
+        if (objectVerbs.contains(activity.getVerb())) {
+            hot = activity.getObject();
+        }
+        else if (targetVerbs.contains(activity.getVerb())) {
+            hot = activity.getTarget();
+        }
+
+        if (hot == null || hot.getId() == null) {
+            hot = activity.getActor();
+        }
+
+        // Activities without actor are ignored by the strategies, any task can take them.
+        return hot != null && hot.getId() != null ? hot.getId() : activity.getAid();
+    }
+}
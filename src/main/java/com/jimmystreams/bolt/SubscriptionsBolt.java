@@ -6,10 +6,19 @@
 
 package com.jimmystreams.bolt;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.util.ExpiringCache;
+import com.jimmystreams.util.OrientDBPool;
 import com.orientechnologies.orient.core.command.script.OCommandFunction;
-import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
 import com.orientechnologies.orient.core.record.impl.ODocument;
 import org.apache.log4j.Logger;
+import org.apache.storm.metric.api.CountMetric;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
@@ -21,24 +30,44 @@ import org.apache.storm.tuple.Values;
 import org.bson.Document;
 import org.json.JSONObject;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 /**
  * Bolt that listen for audiences and retrieve the list of streams subscribed to the audience.
  * This bolt will emit a copy of the activity per each stream subscribed.
+ *
+ * Subscriptions are cached per stream, the cached list of a stream is discarded
+ * when a tuple arrives from the "subscriptionChanges" stream.
+ * The cached list of a stream is read for a time bucket and keeps the creation date of the subscriptions,
+ * each activity of the bucket leaves out the ones created after it; activities of another bucket do not use it.
+ *
+ * Large audiences are expanded in chunks. After each chunk the bolt sends a job with the position
+ * where the next chunk starts to the fan-out queue, and the input is acknowledged once the job is stored.
+ * The jobs come back through a {@link com.jimmystreams.spout.FanoutJobSpout}, so every chunk is a
+ * tuple tree of its own and a failed chunk is replayed alone.
+ * Without a fan-out queue the whole audience is expanded in the input tuple.
  */
     public class SubscriptionsBolt extends BaseRichBolt {
+    public static final String SUBSCRIPTION_CHANGES_STREAM = "subscriptionChanges";
+
     private String dsn;
     private String user;
     private String password;
 
-    private ODatabaseDocumentTx _connection;
+    private OrientDBPool pool;
+    private String fanoutQueue;
+    private AmazonSQS sqs;
     protected int batch;
+    protected boolean keyset;
+    protected int chunk;
     protected OutputCollector _collector;
 
+    private ExpiringCache<String, Subscriptions> cache;
+    private int cacheMaxSubscribers;
+    private long cacheTimeBucket;
+    private CountMetric cacheHits;
+    private CountMetric cacheMisses;
+
     protected final static Logger logger = Logger.getLogger(SubscriptionsBolt.class);
 
     public SubscriptionsBolt(String dsn, String user, String password) {
@@ -53,62 +82,470 @@ import java.util.*;
         declarer.declare(new Fields("stream", "activity"));
     }
 
+    /**
+     * Expand the large audiences through a queue of jobs, one per chunk.
+     *
+     * @param fanoutQueue URL of the SQS queue consumed by the fan-out job spout.
+     *
+     * @return The bolt.
+     */
+    public SubscriptionsBolt withFanoutQueue(String fanoutQueue) {
+        this.fanoutQueue = fanoutQueue;
+        return this;
+    }
+
     @Override
     public void prepare(Map conf, TopologyContext context, OutputCollector collector) {
         this._collector = collector;
         this.batch = ((Long)conf.get("stream_orientdb_batch")).intValue();
-        this._connection = new ODatabaseDocumentTx(this.dsn);
-        this._connection.open(this.user, this.password);
+        this.keyset = ((Long)conf.get("stream_orientdb_keyset")).intValue() == 1;
+        this.chunk = ((Long)conf.get("stream_fanout_chunk")).intValue();
+        this.pool = OrientDBPool.acquire(context, this.dsn, this.user, this.password);
+
+        if (this.hasFanoutQueue()) {
+            this.sqs = this.createClient();
+        }
+
+        this.cache = new ExpiringCache<>(
+                ((Long)conf.get("stream_cache_size")).intValue(),
+                ((Long)conf.get("stream_cache_ttl")).longValue());
+        this.cacheMaxSubscribers = ((Long)conf.get("stream_cache_max_subscribers")).intValue();
+        this.cacheTimeBucket = ((Long)conf.get("stream_cache_time_bucket")).longValue();
+        this.cacheHits = context.registerMetric("subscriptions_cache_hits", new CountMetric(), 60);
+        this.cacheMisses = context.registerMetric("subscriptions_cache_misses", new CountMetric(), 60);
     }
 
     @Override
     public void execute(Tuple input) {
-        Document stream = (Document)input.getValueByField("stream");
-        JSONObject activity = (JSONObject)input.getValueByField("activity");
+        // A stream gained or lost subscribers.
+        if (input.getSourceStreamId().equals(SUBSCRIPTION_CHANGES_STREAM)) {
+            this.invalidateSubscriptions(input.getStringByField("stream"));
+            this._collector.ack(input);
+            return;
+        }
 
-        logger.info(String.format("Find streams subscribed to %s", stream.getString("id")));
+        Document stream = (Document)input.getValueByField("stream");
+        ActivityEnvelope activity = (ActivityEnvelope)input.getValueByField("activity");
 
-        int page = 0;
-        List<ODocument> results;
+        // Position of the chunk, fan-out jobs continue a previous expansion.
+        boolean isJob = input.contains("offset");
+        int offset = isJob ? input.getIntegerByField("offset") : 0;
+        String cursor = isJob ? input.getStringByField("cursor") : null;
 
-        DateFormat date_format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'", Locale.ENGLISH);
-        Date published = new Date();
+        logger.info(String.format("Find streams subscribed to %s from %d", stream.getString("id"), offset));
 
-        try {
-            published = date_format.parse(activity.getString("published"));
-        } catch (ParseException e) {
-            logger.warn(String.format("Error parsing date from activity <%s>", activity.getString("published")));
-            logger.warn("Use <new Date()> instead");
-        }
+        Date published = this.getPublished(activity);
+        String actor = activity.getActor().getId();
+        Subscriptions chunk;
 
         do {
-            results = paginateSubscriptions(stream.getString("id"), false, published, page, this.batch);
-            page++;
-            for (ODocument o : results) {
-                if (!activity.getJSONObject("actor").getString("id").equals(o.<String>field("id"))) {
-                    this._collector.emit(input, new Values(o.<String>field("id"), activity));
+            chunk = this.findSubscriptions(stream.getString("id"), false, published, offset, cursor, this.chunk, actor);
+            if (chunk.ids.isEmpty()) {
+                break;
+            }
+            offset += chunk.ids.size();
+            cursor = chunk.getCursor();
+
+            // Continue the expansion in a job of its own, so other activities can be processed meanwhile.
+            // The job is stored before the chunk is emitted, a failure only replays this input.
+            if (!chunk.complete && this.hasFanoutQueue()) {
+                try {
+                    this.sendJob(stream, activity, cursor, offset);
+                }
+                catch (AmazonClientException e) {
+                    logger.error(String.format("Error queueing the fan-out of %s: %s", stream.getString("id"), e.toString()));
+                    this._collector.fail(input);
+                    return;
                 }
             }
-        } while (results.size() == this.batch);
+
+            for (String subscriber : chunk.ids) {
+                if (!actor.equals(subscriber)) {
+                    this._collector.emit(input, new Values(subscriber, activity));
+                }
+            }
+        } while (!chunk.complete && !this.hasFanoutQueue());
 
         // If need persistence, save the stream in Redis & Mongo
-        if (stream.getBoolean("persist")) {
+        if (!isJob && stream.getBoolean("persist")) {
             this._collector.emit(input, new Values(stream.getString("id"), activity));
         }
 
         this._collector.ack(input);
     }
 
-    protected List<ODocument> paginateSubscriptions(String stream, boolean notification, Date published, int page, int amount) {
-        Map<String, Object> params = new HashMap<>();
+    /**
+     * Store the job of the next chunk in the fan-out queue.
+     *
+     * @param stream   The stream.
+     * @param activity The activity.
+     * @param cursor   The position after the last stream expanded.
+     * @param offset   The amount of streams expanded.
+     */
+    private void sendJob(Document stream, ActivityEnvelope activity, String cursor, int offset) {
+        JSONObject job = new JSONObject()
+                .put("stream", stream.toJson())
+                .put("activity", activity.getJson())
+                .put("cursor", cursor)
+                .put("offset", offset);
+
+        this.sqs.sendMessage(new SendMessageRequest(this.fanoutQueue, job.toString()));
+    }
+
+    /**
+     * Create the client of the fan-out queue.
+     * Override to send the jobs to a local fake of SQS.
+     *
+     * @return The client.
+     */
+    protected AmazonSQS createClient() {
+        return new AmazonSQSClient(new ProfileCredentialsProvider());
+    }
+
+    private boolean hasFanoutQueue() {
+        return this.fanoutQueue != null && !this.fanoutQueue.isEmpty();
+    }
+
+    @Override
+    public void cleanup() {
+        this.pool.release();
+        if (this.sqs != null) {
+            this.sqs.shutdown();
+        }
+    }
+
+    /**
+     * Published date of the activity used as time mark for the subscriptions.
+     *
+     * @param activity The activity.
+     *
+     * @return The date, or the current date when the activity does not have a valid one.
+     */
+    protected Date getPublished(ActivityEnvelope activity) {
+        if (!activity.hasPublished()) {
+            logger.warn(String.format("Activity %s without a valid published date. Use <new Date()> instead", activity.getAid()));
+            return new Date();
+        }
+
+        return new Date(activity.getPublished());
+    }
+
+    /**
+     * Find a chunk of the streams subscribed to a stream.
+     * The first subscriptions of every stream are cached (up to the configured maximum),
+     * the chunks beyond the cached ones are loaded page by page from OrientDB.
+     *
+     * The cached subscriptions are read once per time bucket, up to the end of the bucket, and keep their
+     * creation date: every activity of the bucket leaves out the ones created after it was published,
+     * so it gets the same subscribers as the query with its exact time mark.
+     *
+     * @param stream       The stream.
+     * @param notification Look only for subscriptions with notifications enabled.
+     * @param published    The date of the activity.
+     * @param offset       The amount of subscriptions already read.
+     * @param cursor       The position after the last stream read, null for the first chunk.
+     * @param limit        The maximum size of the chunk.
+     * @param exclude      The stream left out, usually the actor, or null.
+     *                     The offsets count the subscriptions without it.
+     *
+     * @return The chunk. It is complete when there are no more subscriptions after it.
+     */
+    protected Subscriptions findSubscriptions(String stream, boolean notification, Date published, int offset, String cursor, int limit, String exclude) {
+        if (offset < this.cacheMaxSubscribers) {
+            Subscriptions head = this.findCachedSubscriptions(stream, notification, published);
+            if (head == null) {
+                return this.readSubscriptions(stream, notification, published, offset, cursor, limit, exclude);
+            }
+
+            // The cached list is shared by the bucket, the subscriptions created after the activity and the
+            // excluded stream are left out here, so the offsets match the pages the query reads for the activity.
+            long time = published.getTime();
+            List<String> ids = new ArrayList<>();
+            List<String> cursors = new ArrayList<>();
+            int seen = 0;
+            int i = 0;
+
+            for (; i < head.ids.size(); i++) {
+                String id = head.ids.get(i);
+                if (head.created.get(i) > time || id.equals(exclude) || seen++ < offset) {
+                    continue;
+                }
+                if (ids.size() == limit) {
+                    break;
+                }
+                ids.add(id);
+                cursors.add(head.cursors.get(i));
+            }
+
+            boolean end = i == head.ids.size();
+            if (!ids.isEmpty() || (end && head.complete)) {
+                return new Subscriptions(ids, cursors, head.complete && end);
+            }
+
+            // Every subscription of the list was read, continue after it.
+            if (seen == offset) {
+                cursor = head.getCursor();
+            }
+        }
+
+        return this.readSubscriptions(stream, notification, published, offset, cursor, limit, exclude);
+    }
+
+    /**
+     * Find the first subscriptions of a stream, up to the end of the time bucket of the activity.
+     * The list is read from the cache when it was loaded for the same bucket, otherwise is loaded from OrientDB
+     * and replaces the cached one. Late activities, of an earlier bucket than the cached list, do not load it:
+     * they read only the chunk they need.
+     *
+     * @param stream       The stream.
+     * @param notification Look only for subscriptions with notifications enabled.
+     * @param published    The date of the activity.
+     *
+     * @return Up to the configured maximum of subscriptions, with their creation date,
+     *         or null when the activity is older than the cached list.
+     */
+    private Subscriptions findCachedSubscriptions(String stream, boolean notification, Date published) {
+        String key = this.getCacheKey(stream, notification);
+        Subscriptions subscriptions = this.cache.get(key);
+        long bucket = this.getTimeBucket(published);
+
+        if (subscriptions != null && subscriptions.timeMark == bucket) {
+            this.cacheHits.incr();
+            return subscriptions;
+        }
+
+        this.cacheMisses.incr();
+        if (subscriptions != null && subscriptions.timeMark > bucket) {
+            return null;
+        }
+
+        Date end = new Date(this.cacheTimeBucket > 0 ? bucket + this.cacheTimeBucket - 1 : bucket);
+        Subscriptions head = this.readSubscriptions(stream, notification, end, 0, null, this.cacheMaxSubscribers, null);
+        head = new Subscriptions(head.ids, head.cursors, head.created, head.complete, bucket);
+        this.cache.put(key, head);
+
+        return head;
+    }
+
+    /**
+     * Load subscriptions from OrientDB page by page.
+     *
+     * @param stream       The stream.
+     * @param notification Look only for subscriptions with notifications enabled.
+     * @param published    The date of the activity.
+     * @param offset       The amount of subscriptions already read.
+     * @param cursor       The position after the last stream read, null for the first page.
+     * @param limit        Stop reading pages after this amount of subscriptions.
+     * @param exclude      The stream left out, or null.
+     *
+     * @return The subscriptions read.
+     */
+    private Subscriptions readSubscriptions(String stream, boolean notification, Date published, int offset, String cursor, int limit, String exclude) {
+        List<String> ids = new ArrayList<>();
+        List<String> cursors = new ArrayList<>();
+        List<Long> created = new ArrayList<>();
+        List<ODocument> results;
+
+        do {
+            results = nextSubscriptions(stream, notification, published, offset, cursor, exclude);
+            offset += results.size();
+            for (ODocument o : results) {
+                cursor = getCursor(o);
+                ids.add(o.field("id"));
+                cursors.add(cursor);
+                created.add(getCreated(o));
+            }
+        } while (results.size() == this.batch && ids.size() < limit);
+
+        return new Subscriptions(ids, cursors, created, results.size() < this.batch, -1);
+    }
+
+    /**
+     * @param o A subscription read from OrientDB.
+     *
+     * @return The creation date (ms) of the subscription, or Long.MIN_VALUE when the query does not return it.
+     */
+    private static long getCreated(ODocument o) {
+        Object created = o.field("created");
+        if (created instanceof Date) {
+            return ((Date)created).getTime();
+        }
+        if (created instanceof Number) {
+            return ((Number)created).longValue();
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * @param o A subscription read from OrientDB.
+     *
+     * @return The record id of the subscribed stream when the query returns it, otherwise its id.
+     */
+    private static String getCursor(ODocument o) {
+        Object rid = o.field("rid");
+        if (rid instanceof OIdentifiable) {
+            return ((OIdentifiable)rid).getIdentity().toString();
+        }
+        return o.field("id");
+    }
+
+    /**
+     * Discard the cached subscriptions of a stream.
+     *
+     * @param stream The stream.
+     */
+    protected void invalidateSubscriptions(String stream) {
+        logger.info(String.format("Subscriptions to %s changed", stream));
+        this.cache.invalidate(this.getCacheKey(stream, false));
+        this.cache.invalidate(this.getCacheKey(stream, true));
+    }
+
+    /**
+     * @param published The date of the activity.
+     *
+     * @return The start (ms) of the time bucket of the date, the date itself without buckets.
+     */
+    private long getTimeBucket(Date published) {
+        long time = published.getTime();
+        if (this.cacheTimeBucket <= 0) {
+            return time;
+        }
+
+        return time - Math.floorMod(time, this.cacheTimeBucket);
+    }
+
+    private String getCacheKey(String stream, boolean notification) {
+        return stream + (notification ? ":notification" : ":timeline");
+    }
+
+    /**
+     * Read the next page of subscriptions.
+     * In keyset mode the page starts after the record id of the last stream seen (the cursor),
+     * otherwise it skips the subscriptions already read.
+     *
+     * @param stream       The stream.
+     * @param notification Look only for subscriptions with notifications enabled.
+     * @param published    The date of the activity.
+     * @param offset       The amount of subscriptions already read.
+     * @param cursor       The record id of the last stream seen, null for the first page.
+     * @param exclude      The stream left out, or null.
+     *
+     * @return The page.
+     */
+    protected List<ODocument> nextSubscriptions(String stream, boolean notification, Date published, int offset, String cursor, String exclude) {
+        if (this.keyset) {
+            return paginateSubscriptions(stream, notification, published, cursor, this.batch, exclude);
+        }
+
+        return paginateSubscriptions(stream, notification, published, offset, this.batch, exclude);
+    }
+
+    /**
+     * Offset pagination.
+     * The function "findSubscriptionsExcluding" returns the subscriptions ordered by the id of the
+     * subscribed stream, skipping the first ones, without the excluded stream.
+     * It is defined in orientdb/subscriptions.osql; the arguments are put in the order of its parameters.
+     *
+     * @param stream       The stream.
+     * @param notification Look only for subscriptions with notifications enabled.
+     * @param published    The date of the activity.
+     * @param offset       The amount of subscriptions already read.
+     * @param amount       The size of the page.
+     * @param exclude      The stream left out, or null.
+     *
+     * @return The page.
+     */
+    protected List<ODocument> paginateSubscriptions(String stream, boolean notification, Date published, int offset, int amount, String exclude) {
+        Map<String, Object> params = new LinkedHashMap<>();
         params.put("starter", stream);
         params.put("notification", notification);
         params.put("time_mark", published.getTime());
-        params.put("offset", page * amount);
+        params.put("offset", offset);
         params.put("quantity", amount);
+        putExclude(params, exclude);
 
-        this._connection.activateOnCurrentThread();
+        return this.pool.execute(connection ->
+                connection.command(new OCommandFunction("findSubscriptionsExcluding")).<List<ODocument>>execute(params));
+    }
+
+    /**
+     * Keyset pagination.
+     * The function "findSubscriptionsAfter" returns the subscriptions ordered by the record id of the
+     * subscribed stream, starting after the cursor. It scans the index of the Subscription edges
+     * from the cursor, so a page costs about its size whatever the size of the audience.
+     * It is defined in orientdb/subscriptions.osql; the arguments are put in the order of its parameters.
+     *
+     * @param stream       The stream.
+     * @param notification Look only for subscriptions with notifications enabled.
+     * @param published    The date of the activity.
+     * @param cursor       The record id of the last stream seen, null for the first page.
+     * @param amount       The size of the page.
+     * @param exclude      The stream left out, or null.
+     *
+     * @return The page.
+     */
+    protected List<ODocument> paginateSubscriptions(String stream, boolean notification, Date published, String cursor, int amount, String exclude) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("starter", stream);
+        params.put("notification", notification);
+        params.put("time_mark", published.getTime());
+        params.put("cursor", cursor != null ? cursor : "");
+        params.put("quantity", amount);
+        putExclude(params, exclude);
 
-        return this._connection.command(new OCommandFunction("findSubscriptions")).execute(params);
+        return this.pool.execute(connection ->
+                connection.command(new OCommandFunction("findSubscriptionsAfter")).<List<ODocument>>execute(params));
+    }
+
+    /**
+     * The functions get their arguments in the order they are put, not by name,
+     * so "exclude" is always the last one, like in orientdb/subscriptions.osql.
+     *
+     * @param params  The arguments of the function.
+     * @param exclude The stream left out, or null.
+     */
+    private static void putExclude(Map<String, Object> params, String exclude) {
+        params.put("exclude", exclude != null ? exclude : "");
+    }
+
+    /**
+     * Subscriptions read from a position of the list.
+     */
+    protected static class Subscriptions {
+        protected final List<String> ids;
+
+        /**
+         * Position after each subscription: the record id of the subscribed stream in keyset mode, otherwise its id.
+         */
+        protected final List<String> cursors;
+        /**
+         * Creation date (ms) of each subscription, only kept for the ones read from OrientDB.
+         */
+        protected final List<Long> created;
+        protected final boolean complete;
+
+        /**
+         * Start of the time bucket the subscriptions were read for, only known for the cached ones.
+         */
+        protected final long timeMark;
+
+        protected Subscriptions(List<String> ids, List<String> cursors, boolean complete) {
+            this(ids, cursors, Collections.emptyList(), complete, -1);
+        }
+
+        protected Subscriptions(List<String> ids, List<String> cursors, List<Long> created, boolean complete, long timeMark) {
+            this.ids = Collections.unmodifiableList(ids);
+            this.cursors = Collections.unmodifiableList(cursors);
+            this.created = Collections.unmodifiableList(created);
+            this.complete = complete;
+            this.timeMark = timeMark;
+        }
+
+        /**
+         * @return The position after the last subscription, or null when there are none.
+         */
+        protected String getCursor() {
+            return this.cursors.isEmpty() ? null : this.cursors.get(this.cursors.size() - 1);
+        }
     }
 }
@@ -0,0 +1,149 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.bolt;
+
+import com.jimmystreams.util.ExpiringCache;
+import com.jimmystreams.util.TupleBatch;
+import org.apache.storm.metric.api.CountMetric;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.TupleUtils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bolt that coalesces the "timeline updated" signals of a user.
+ * A user is signaled at most once per window: the first update is signaled right away,
+ * the following ones are counted and signaled together when the window ends.
+ *
+ * The signals only wake up the clients, so the tuples are acknowledged as they arrive
+ * and the signals are emitted unanchored.
+ *
+ * The bolt must receive the signals grouped by "user".
+ */
+public class TimelineSignalBolt extends BaseRichBolt {
+    private OutputCollector _collector;
+    private long window;
+    private int capacity;
+
+    /**
+     * Time of the last signal by user.
+     */
+    private ExpiringCache<String, Long> signaled;
+
+    /**
+     * Updates not signaled yet by user, in arrival order.
+     */
+    private LinkedHashMap<String, Pending> pending;
+
+    private CountMetric received;
+    private CountMetric emitted;
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(new Fields("user", "messageType", "count"));
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return TupleBatch.tickConfiguration(1000);
+    }
+
+    @Override
+    public void prepare(Map conf, TopologyContext context, OutputCollector collector) {
+        this._collector = collector;
+        this.window = ((Long)conf.get("timeline_signal_window")).longValue();
+        this.capacity = ((Long)conf.get("timeline_signal_capacity")).intValue();
+
+        this.signaled = new ExpiringCache<>(this.capacity, this.window);
+        this.pending = new LinkedHashMap<>();
+
+        this.received = context.registerMetric("timeline_signals_received", new CountMetric(), 60);
+        this.emitted = context.registerMetric("timeline_signals_emitted", new CountMetric(), 60);
+    }
+
+    @Override
+    public void execute(Tuple input) {
+        if (TupleUtils.isTick(input)) {
+            this.emitDue();
+            return;
+        }
+
+        String user = input.getStringByField("user");
+        String messageType = input.getStringByField("messageType");
+        this.received.incr();
+
+        Pending updates = this.pending.get(user);
+        if (updates != null) {
+            updates.count++;
+        }
+        else if (this.signaled.get(user) == null) {
+            this.emit(user, messageType, 1);
+        }
+        else {
+            this.pending.put(user, new Pending(messageType));
+
+            // Keep the state bounded, the oldest user is signaled before its window ends.
+            if (this.pending.size() > this.capacity) {
+                Iterator<Map.Entry<String, Pending>> eldest = this.pending.entrySet().iterator();
+                Map.Entry<String, Pending> entry = eldest.next();
+                eldest.remove();
+                this.emit(entry.getKey(), entry.getValue().messageType, entry.getValue().count);
+            }
+        }
+
+        this._collector.ack(input);
+    }
+
+    /**
+     * Signal the users whose window ended.
+     */
+    private void emitDue() {
+        Iterator<Map.Entry<String, Pending>> iterator = this.pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Pending> entry = iterator.next();
+
+            if (this.signaled.get(entry.getKey()) == null) {
+                iterator.remove();
+                this.emit(entry.getKey(), entry.getValue().messageType, entry.getValue().count);
+            }
+        }
+    }
+
+    private void emit(String user, String messageType, int count) {
+        this.signaled.put(user, System.currentTimeMillis());
+        this._collector.emit(new Values(user, messageType, count));
+        this.emitted.incr();
+    }
+
+    @Override
+    public void cleanup() {
+        for (Map.Entry<String, Pending> entry : this.pending.entrySet()) {
+            this._collector.emit(new Values(entry.getKey(), entry.getValue().messageType, entry.getValue().count));
+        }
+        this.pending.clear();
+    }
+
+    /**
+     * Updates of a user waiting for the end of the window.
+     */
+    private static class Pending {
+        private final String messageType;
+        private int count = 1;
+
+        private Pending(String messageType) {
+            this.messageType = messageType;
+        }
+    }
+}
@@ -6,19 +6,14 @@
 
 package com.jimmystreams.mapper;
 
+import com.jimmystreams.activity.ActivityEnvelope;
 import org.apache.storm.mongodb.common.mapper.MongoMapper;
 import org.apache.storm.tuple.ITuple;
 import org.apache.log4j.Logger;
 
 import org.bson.Document;
-import org.json.JSONObject;
-import com.mongodb.util.JSON;
 
-import java.text.DateFormat;
-import java.text.ParseException;
 import java.util.Date;
-import java.util.Locale;
-import java.text.SimpleDateFormat;
 
 /**
  * MongoDB Mapper to translate a tuple to a Document.
@@ -30,25 +25,24 @@ public class ActivityMongoMapper implements MongoMapper {
     @Override
     public Document toDocument(ITuple tuple) {
         String stream = tuple.getStringByField("stream");
-        JSONObject activity = (JSONObject)tuple.getValueByField("activity");
-        String activity_id = activity.getString("aid");
+        ActivityEnvelope activity = (ActivityEnvelope)tuple.getValueByField("activity");
+        String activity_id = activity.getAid();
 
-        DateFormat date_format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'", Locale.ENGLISH);
         Date published = null;
 
-        try {
-            published = date_format.parse(activity.getString("published"));
-        } catch (ParseException e) {
-            logger.error(String.format("Error mapping activity %s to redis: %s", activity_id, e.toString()));
+        if (activity.hasPublished()) {
+            published = new Date(activity.getPublished());
+        } else {
+            logger.error(String.format("Error mapping activity %s to mongo: invalid published date", activity_id));
         }
 
         // Extract fields "aid" and "published" from the activity and save them at document-level.
         // This is for easing the queries.
         // The field "published" was converted to Date, so MongoDB can store it correctly.
-        Document doc = new Document("aid", activity.getString("aid"))
+        Document doc = new Document("aid", activity_id)
                 .append("published", published)
                 .append("stream", stream)
-                .append("activity", JSON.parse(activity.toString()));
+                .append("activity", Document.parse(activity.getJson()));
 
         logger.info(String.format("Storing activity %s in historical list of stream %s", activity_id, stream));
 
@@ -0,0 +1,30 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.serialization;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.bson.Document;
+
+/**
+ * Kryo serializer for the small documents emitted by the bolts (e.g. the "stream" of AudienceBolt).
+ * The document travels as extended JSON.
+ */
+public class BsonDocumentSerializer extends Serializer<Document> {
+
+    @Override
+    public void write(Kryo kryo, Output output, Document document) {
+        output.writeString(document.toJson());
+    }
+
+    @Override
+    public Document read(Kryo kryo, Input input, Class<Document> type) {
+        return Document.parse(input.readString());
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.serialization;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.json.JSONObject;
+
+/**
+ * Kryo serializer for JSON objects emitted by the bolts (e.g. the "user" of NotificationAudienceBolt).
+ */
+public class JSONObjectSerializer extends Serializer<JSONObject> {
+
+    @Override
+    public void write(Kryo kryo, Output output, JSONObject object) {
+        output.writeString(object.toString());
+    }
+
+    @Override
+    public JSONObject read(Kryo kryo, Input input, Class<JSONObject> type) {
+        return new JSONObject(input.readString());
+    }
+}
@@ -8,7 +8,23 @@ package com.jimmystreams.social;
 
 import org.json.JSONObject;
 
+import java.util.Collection;
+
+/**
+ * Applies the activities of some verbs to the social graph.
+ * Implementations are shared by all the activities and threads, so they must not keep state.
+ * They are discovered with {@link java.util.ServiceLoader} and need a constructor without arguments.
+ */
 public interface ActivityVerbStrategy
 {
-    void handleActivity(JSONObject activity);
+    /**
+     * @return The verbs handled by the strategy.
+     */
+    Collection<String> getVerbs();
+
+    /**
+     * @param session  The graph and helpers of the caller.
+     * @param activity The activity. The strategy may modify it.
+     */
+    void handleActivity(GraphSession session, JSONObject activity);
 }
@@ -0,0 +1,76 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.social;
+
+import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+
+/**
+ * Everything a strategy needs to apply an activity: the graph with the open transaction,
+ * the vertex cache and the accumulators of scores.
+ * Strategies are shared, so this state is given on every call and never kept by them.
+ * A session belongs to a single thread.
+ *
+ * When the activities are partitioned, only the vertex of the partition key belongs to the task:
+ * the scores of any other vertex go to the deferred accumulator, to be written by their owner.
+ */
+public class GraphSession {
+    private final OrientGraph graph;
+    private final VertexCache vertices;
+    private final ScoreAccumulator scores;
+    private final ScoreAccumulator deferred;
+    private String partitionKey;
+
+    /**
+     * @param graph    The graph.
+     * @param vertices The vertex cache, or null to always query the graph.
+     * @param scores   The accumulator, or null to write the scores in the transaction.
+     * @param deferred The accumulator of the vertices owned by other tasks, or null when the task owns them all.
+     */
+    public GraphSession(OrientGraph graph, VertexCache vertices, ScoreAccumulator scores, ScoreAccumulator deferred) {
+        this.graph = graph;
+        this.vertices = vertices;
+        this.scores = scores;
+        this.deferred = deferred;
+    }
+
+    /**
+     * @param partitionKey The id of the vertex owned by the task for the activity being applied, or null.
+     */
+    public void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
+    public OrientGraph getGraph() {
+        return this.graph;
+    }
+
+    /**
+     * @return The vertex cache or null.
+     */
+    public VertexCache getVertices() {
+        return this.vertices;
+    }
+
+    /**
+     * @return The accumulator of scores or null.
+     */
+    public ScoreAccumulator getScores() {
+        return this.scores;
+    }
+
+    /**
+     * @param id The "id" property of a vertex.
+     *
+     * @return The accumulator for the scores of the vertex, or null to write them in the transaction.
+     */
+    public ScoreAccumulator getScoresOf(Object id) {
+        if (this.deferred != null && this.partitionKey != null && !this.partitionKey.equals(String.valueOf(id))) {
+            return this.deferred;
+        }
+        return this.scores;
+    }
+}
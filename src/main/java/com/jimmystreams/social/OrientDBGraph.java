@@ -1,6 +1,8 @@
 package com.jimmystreams.social;
 
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.tinkerpop.blueprints.Parameter;
+import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.orient.OrientConfigurableGraph;
 import com.tinkerpop.blueprints.impls.orient.OrientGraph;
 
@@ -38,4 +40,34 @@ public class OrientDBGraph
         graph.makeActive();
         return graph;
     }
+
+    /**
+     * Make sure the vertices of the classes have a unique index on "id",
+     * so the lookups by id do not scan the class.
+     * Call it before starting a transaction, schema changes commit the open one.
+     *
+     * @param graph   The graph.
+     * @param classes The vertex classes.
+     */
+    static public void ensureIdIndexes(OrientGraph graph, String... classes)
+    {
+        for (String vertexClass : classes) {
+            try {
+                if (graph.getVertexType(vertexClass) == null) {
+                    graph.createVertexType(vertexClass);
+                }
+
+                if (!graph.getIndexedKeys(Vertex.class, new Parameter<>("class", vertexClass)).contains("id")) {
+                    logger.info(String.format("Create unique index on %s.id", vertexClass));
+                    graph.createKeyIndex("id", Vertex.class,
+                            new Parameter<>("class", vertexClass),
+                            new Parameter<>("type", "UNIQUE"));
+                }
+            }
+            catch (RuntimeException e) {
+                // E.g. duplicated ids, the lookups still work without the index.
+                logger.error(String.format("Cannot create unique index on %s.id: %s", vertexClass, e.toString()));
+            }
+        }
+    }
 }
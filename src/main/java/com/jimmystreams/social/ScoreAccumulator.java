@@ -0,0 +1,143 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.social;
+
+import com.orientechnologies.orient.core.sql.OCommandSQL;
+import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import org.apache.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Score increments of the vertices waiting to be written to the graph.
+ * Increments of the same vertex are added up in memory and written as a single
+ * atomic increment, so hot vertices are written once per flush instead of once per activity.
+ *
+ * Increments can be added concurrently, an increment added while flushing is written in the next flush.
+ */
+public class ScoreAccumulator {
+    private final ConcurrentHashMap<VertexKey, Double> increments = new ConcurrentHashMap<>();
+
+    private final static Logger logger = Logger.getLogger(ScoreAccumulator.class);
+
+    /**
+     * @param vertexClass The class of the vertex.
+     * @param id          The "id" property of the vertex.
+     * @param increment   The amount added to the score, it can be negative.
+     */
+    public void add(String vertexClass, Object id, double increment) {
+        this.increments.merge(new VertexKey(vertexClass, id), increment, Double::sum);
+    }
+
+    public boolean isEmpty() {
+        return this.increments.isEmpty();
+    }
+
+    /**
+     * Write the accumulated increments, one update per vertex.
+     * The updates lock the record, so increments from other tasks are not lost.
+     *
+     * The updates run on the server right away, outside the transaction of the graph. Each one stores the id
+     * of the flush in "scoreFlush" and is skipped when the vertex already has it, so a flush can be retried
+     * with the same id: the vertices already written are not incremented twice.
+     * If an update fails the increments not written are kept, retry them with the same id before adding new ones.
+     *
+     * @param graph   The graph.
+     * @param flushId The id of the flush, the same for its retries.
+     *
+     * @return The amount of vertices updated.
+     */
+    public int flush(OrientGraph graph, String flushId) {
+        int updated = 0;
+
+        for (VertexKey key : this.increments.keySet()) {
+            Double increment = this.increments.remove(key);
+            if (increment == null || increment == 0) {
+                continue;
+            }
+
+            try {
+                graph.command(new OCommandSQL(String.format(
+                        "UPDATE %s SET scoreFlush = ? INCREMENT score = ? WHERE id = ? AND (scoreFlush IS NULL OR scoreFlush <> ?) LOCK RECORD",
+                        key.vertexClass)))
+                        .execute(flushId, increment, key.id, flushId);
+                updated++;
+            }
+            catch (RuntimeException e) {
+                this.add(key.vertexClass, key.id, increment);
+                throw e;
+            }
+        }
+
+        logger.info(String.format("Scores of %d vertices updated", updated));
+        return updated;
+    }
+
+    /**
+     * Take all the increments out of the accumulator.
+     *
+     * @param consumer Receives every increment.
+     */
+    public void drain(IncrementConsumer consumer) {
+        for (VertexKey key : this.increments.keySet()) {
+            Double increment = this.increments.remove(key);
+            if (increment != null && increment != 0) {
+                consumer.accept(key.vertexClass, key.id, increment);
+            }
+        }
+    }
+
+    /**
+     * Move the increments to another accumulator.
+     *
+     * @param target The accumulator receiving the increments.
+     */
+    public void moveTo(ScoreAccumulator target) {
+        for (VertexKey key : this.increments.keySet()) {
+            Double increment = this.increments.remove(key);
+            if (increment != null) {
+                target.increments.merge(key, increment, Double::sum);
+            }
+        }
+    }
+
+    /**
+     * Discard the increments not written.
+     */
+    public void clear() {
+        this.increments.clear();
+    }
+
+    public interface IncrementConsumer {
+        void accept(String vertexClass, Object id, double increment);
+    }
+
+    private static class VertexKey {
+        private final String vertexClass;
+        private final Object id;
+
+        private VertexKey(String vertexClass, Object id) {
+            this.vertexClass = vertexClass;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof VertexKey)) {
+                return false;
+            }
+            VertexKey other = (VertexKey) o;
+            return this.vertexClass.equals(other.vertexClass) && this.id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.vertexClass.hashCode() + this.id.hashCode();
+        }
+    }
+}
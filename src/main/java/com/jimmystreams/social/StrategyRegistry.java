@@ -0,0 +1,73 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.social;
+
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Strategies by verb.
+ * The strategies are listed in META-INF/services/com.jimmystreams.social.ActivityVerbStrategy,
+ * so a new verb only needs a new strategy and its entry in that file.
+ */
+public class StrategyRegistry
+{
+    private final Map<String, ActivityVerbStrategy> strategies;
+    private final ActivityVerbStrategy fallback;
+
+    private final static Logger logger = Logger.getLogger(StrategyRegistry.class);
+
+    /**
+     * @param strategies The strategies by verb.
+     * @param fallback   The strategy for the verbs without one.
+     */
+    public StrategyRegistry(Map<String, ActivityVerbStrategy> strategies, ActivityVerbStrategy fallback)
+    {
+        this.strategies = Collections.unmodifiableMap(new HashMap<>(strategies));
+        this.fallback = fallback;
+    }
+
+    /**
+     * Load the strategies available in the classpath.
+     *
+     * @param fallback The strategy for the verbs without one.
+     *
+     * @return The registry.
+     */
+    public static StrategyRegistry load(ActivityVerbStrategy fallback)
+    {
+        Map<String, ActivityVerbStrategy> strategies = new HashMap<>();
+
+        for (ActivityVerbStrategy strategy : ServiceLoader.load(ActivityVerbStrategy.class)) {
+            for (String verb : strategy.getVerbs()) {
+                ActivityVerbStrategy previous = strategies.put(verb, strategy);
+                if (previous != null) {
+                    logger.warn(String.format("Verb %s handled by %s instead of %s",
+                            verb, strategy.getClass().getName(), previous.getClass().getName()));
+                }
+            }
+        }
+
+        logger.info(String.format("Strategies loaded for verbs %s", strategies.keySet()));
+        return new StrategyRegistry(strategies, fallback);
+    }
+
+    /**
+     * @param verb The verb of the activity.
+     *
+     * @return The strategy, the fallback when the verb does not have one.
+     */
+    public ActivityVerbStrategy get(String verb)
+    {
+        ActivityVerbStrategy strategy = this.strategies.get(verb);
+        return strategy != null ? strategy : this.fallback;
+    }
+}
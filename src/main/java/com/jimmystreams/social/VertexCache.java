@@ -0,0 +1,102 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.social;
+
+import com.jimmystreams.util.ExpiringCache;
+import com.orientechnologies.orient.core.id.ORID;
+import com.tinkerpop.blueprints.impls.orient.OrientVertex;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Record ids of the vertices, by class and external id.
+ * A cached vertex is loaded by its record id instead of querying the index.
+ *
+ * Vertices created in the open transaction do not have a permanent record id yet,
+ * they are kept apart and cached when the transaction is committed.
+ * Everything is discarded when the transaction is rolled back.
+ *
+ * It is not thread-safe, each task uses its own cache.
+ */
+public class VertexCache {
+    private final ExpiringCache<String, ORID> ids;
+    private final Map<String, OrientVertex> created = new HashMap<>();
+
+    /**
+     * @param maxSize Maximum amount of vertices cached.
+     */
+    public VertexCache(int maxSize) {
+        this.ids = new ExpiringCache<>(maxSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param vertexClass The class of the vertex.
+     * @param id          The "id" property of the vertex.
+     *
+     * @return The vertex created in the open transaction, or null.
+     */
+    public OrientVertex getCreated(String vertexClass, Object id) {
+        return this.created.get(this.getKey(vertexClass, id));
+    }
+
+    /**
+     * @param vertexClass The class of the vertex.
+     * @param id          The "id" property of the vertex.
+     *
+     * @return The record id of the vertex, or null when it is not cached.
+     */
+    public ORID get(String vertexClass, Object id) {
+        return this.ids.get(this.getKey(vertexClass, id));
+    }
+
+    /**
+     * Cache a vertex found in the graph.
+     */
+    public void put(String vertexClass, Object id, OrientVertex vertex) {
+        ORID rid = vertex.getIdentity();
+        if (rid.isPersistent()) {
+            this.ids.put(this.getKey(vertexClass, id), rid.copy());
+        }
+    }
+
+    /**
+     * Remember a vertex created in the open transaction.
+     */
+    public void created(String vertexClass, Object id, OrientVertex vertex) {
+        this.created.put(this.getKey(vertexClass, id), vertex);
+    }
+
+    public void invalidate(String vertexClass, Object id) {
+        this.ids.invalidate(this.getKey(vertexClass, id));
+    }
+
+    /**
+     * Cache the vertices created in the transaction just committed, they have their final record id now.
+     */
+    public void committed() {
+        for (Map.Entry<String, OrientVertex> entry : this.created.entrySet()) {
+            ORID rid = entry.getValue().getIdentity();
+            if (rid.isPersistent()) {
+                this.ids.put(entry.getKey(), rid.copy());
+            }
+        }
+        this.created.clear();
+    }
+
+    /**
+     * Discard everything, the cached vertices could have been created by the transaction rolled back.
+     */
+    public void rolledBack() {
+        this.created.clear();
+        this.ids.clear();
+    }
+
+    private String getKey(String vertexClass, Object id) {
+        return vertexClass + ":" + id;
+    }
+}
@@ -7,24 +7,32 @@
 package com.jimmystreams.social.strategies;
 
 import com.jimmystreams.social.ActivityVerbStrategy;
+import com.jimmystreams.social.GraphSession;
+import com.jimmystreams.social.ScoreAccumulator;
+import com.jimmystreams.social.VertexCache;
+import com.orientechnologies.orient.core.id.ORID;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.orient.OrientEdge;
-import com.tinkerpop.blueprints.impls.orient.OrientGraph;
 import com.tinkerpop.blueprints.impls.orient.OrientVertex;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.json.JSONObject;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-abstract class BaseActivityVerbStrategy implements ActivityVerbStrategy
+/**
+ * Common steps of the strategies: find the actor and the object of the activity,
+ * relate them and update their reputation.
+ * Strategies are stateless, the graph comes in the session of every call.
+ */
+public abstract class BaseActivityVerbStrategy implements ActivityVerbStrategy
 {
-    protected OrientGraph graph;
-    protected Boolean isObjectNew;
-
-    protected Logger logger = Logger.getLogger(BaseActivityVerbStrategy.class);
+    protected final Logger logger = Logger.getLogger(BaseActivityVerbStrategy.class);
 
     protected static final int REPUTATION_FACTOR = 2;
 
@@ -34,21 +42,15 @@ abstract class BaseActivityVerbStrategy implements ActivityVerbStrategy
 
     protected abstract double getReputationValueForActor();
 
-    public BaseActivityVerbStrategy(OrientGraph graph) {
-        this.graph = graph;
-        this.isObjectNew = false;
-    }
-
-    public void handleActivity(JSONObject activity)
+    public void handleActivity(GraphSession session, JSONObject activity)
     {
         // Handle Actor in Activity
         JSONObject activityActor = activity.getJSONObject("actor");
-        OrientVertex actor = this.findOrCreateVertex(activityActor, this.getVertexClass(activityActor));
+        OrientVertex actor = this.findOrCreateVertex(session, activityActor, this.getVertexClass(activityActor));
 
         // Update actor reputation based on the activity verb
-        double newScore = (double)actor.getProperty("score") + this.getReputationValueForActor();
-        logger.info(String.format("Actor score updated to %f", newScore));
-        actor.setProperty("score", newScore);
+        logger.info(String.format("Actor score increased by %f", this.getReputationValueForActor()));
+        this.increaseScore(session, actor, this.getReputationValueForActor());
 
         // Handle Object in Activity
         OrientVertex object = null;
@@ -58,28 +60,24 @@ abstract class BaseActivityVerbStrategy implements ActivityVerbStrategy
 
         if (this.existObjectTypeInGraph(activityObject))
         {
-            object = this.findOrCreateVertex(activityObject, this.getVertexClass(activityObject));
+            object = this.findOrCreateVertex(session, activityObject, this.getVertexClass(activityObject));
 
             // Check if the relation between actor and object exist or if it needs to be created.
-            if (this.isVerbEdgeable()) {
-                this.handleRelationActorObject(actor, object, this.getGraphLabel(activity));
+            if (this.isVerbEdgeable() && this.handleRelationActorObject(session, actor, object, this.getGraphLabel(activity))) {
+                this.relationCreated(session, activity, actor, object);
             }
 
             if (this.isObjectReputationAffectedByVerb()) {
-                double score = object.getProperty("score");
-                object.setProperty("score", score + this.getReputationValueForObject());
+                this.increaseScore(session, object, this.getReputationValueForObject());
             }
         }
 
         // Complete Activity
-        this.acknowledgeActivity(activity, actor, object);
-
-        logger.info("Commit info to the graph");
-        // End transaction with graph database
-        this.graph.commit();
+        // The transaction is committed by the caller, possibly with other activities.
+        this.acknowledgeActivity(session, activity, actor, object);
     }
 
-    private Boolean handleRelationActorObject(OrientVertex actor, OrientVertex object, String label)
+    private Boolean handleRelationActorObject(GraphSession session, OrientVertex actor, OrientVertex object, String label)
     {
         // Check if its needed to create a new edge between the nodes
         Boolean createNewEdge = true;
@@ -92,16 +90,45 @@ abstract class BaseActivityVerbStrategy implements ActivityVerbStrategy
         // Created the edge if it is necessary
         if (createNewEdge) {
             logger.info("Create new edge");
-            graph.addEdge(null, actor, object, label);
+            session.getGraph().addEdge(null, actor, object, label);
         }
 
         return createNewEdge;
     }
 
-    protected void acknowledgeActivity(JSONObject activity, OrientVertex actor, OrientVertex object){
+    /**
+     * Called when the activity created the edge between the actor and the object.
+     * Strategies are shared, so this is the only way to know it: the edge may also be new to the
+     * open transaction because another activity of the same batch created it.
+     */
+    protected void relationCreated(GraphSession session, JSONObject activity, OrientVertex actor, OrientVertex object) {
         // nothing to do
     }
 
+    protected void acknowledgeActivity(GraphSession session, JSONObject activity, OrientVertex actor, OrientVertex object){
+        // nothing to do
+    }
+
+    /**
+     * Increase the score of a vertex, directly or through an accumulator.
+     * Vertices owned by another task always go through the deferred accumulator.
+     *
+     * @param session   The session.
+     * @param vertex    The vertex.
+     * @param increment The amount added, it can be negative.
+     */
+    protected void increaseScore(GraphSession session, OrientVertex vertex, double increment)
+    {
+        ScoreAccumulator scores = session.getScoresOf(vertex.getProperty("id"));
+        if (scores != null) {
+            scores.add(vertex.getLabel(), vertex.getProperty("id"), increment);
+            return;
+        }
+
+        double score = vertex.getProperty("score");
+        vertex.setProperty("score", score + increment);
+    }
+
     protected Boolean isObjectReputationAffectedByVerb() {
         return false;
     }
@@ -121,40 +148,120 @@ abstract class BaseActivityVerbStrategy implements ActivityVerbStrategy
         return activity.getString("verb");
     }
 
-    protected OrientEdge findOrCreateEdge(OrientVertex from, OrientVertex to, String verb, Direction direction)
+    protected OrientEdge findOrCreateEdge(GraphSession session, OrientVertex from, OrientVertex to, String verb, Direction direction)
     {
         Iterable<Edge> edges = from.getEdges(to, direction, verb);
-        return edges.iterator().hasNext() ? (OrientEdge)edges.iterator().next() : graph.addEdge(null, from, to, verb);
+        return edges.iterator().hasNext() ? (OrientEdge)edges.iterator().next() : session.getGraph().addEdge(null, from, to, verb);
     }
 
-    protected OrientVertex findOrCreateVertex(JSONObject item, String targetClass)
+    protected OrientVertex findOrCreateVertex(GraphSession session, JSONObject item, String targetClass)
     {
-        Iterable<Vertex> vertices = graph.getVertices(targetClass, new String[] {"id"}, new Object[] {item.get("id")});
-        OrientVertex vertex;
+        Object id = item.get("id");
+        VertexCache cache = session.getVertices();
+        OrientVertex vertex = this.findCachedVertex(session, targetClass, id);
+        if (vertex != null) {
+            return vertex;
+        }
+
+        Iterable<Vertex> vertices = session.getGraph().getVertices(targetClass, new String[] {"id"}, new Object[] {id});
 
         if (vertices.iterator().hasNext()) {
 
             vertex = (OrientVertex)vertices.iterator().next();
+            if (cache != null) {
+                cache.put(targetClass, id, vertex);
+            }
         }
         else {
-            vertex = graph.addVertex(String.format("class:%s", targetClass));
-            vertex.setProperty("id", item.get("id"));
+            vertex = session.getGraph().addVertex(String.format("class:%s", targetClass));
+            vertex.setProperty("id", id);
             vertex.setProperty("score", 0.0);
+            if (cache != null) {
+                cache.created(targetClass, id, vertex);
+            }
         }
         return vertex;
     }
 
-    protected void connectTechnologies(List<OrientVertex> techs)
+    /**
+     * Load a vertex by the record id in the cache.
+     *
+     * @param session     The session.
+     * @param targetClass The class of the vertex.
+     * @param id          The "id" property of the vertex.
+     *
+     * @return The vertex, or null when it is not cached.
+     */
+    private OrientVertex findCachedVertex(GraphSession session, String targetClass, Object id)
     {
-        for(OrientVertex tech: techs)
-        {
-            for(int j = 1; j <= techs.size() - 1; j++)
-            {
-                OrientEdge link = this.findOrCreateEdge(tech, techs.get(j), "related", Direction.BOTH);
-                int score = link.getProperty("score") != null ? (int) link.getProperty("score") : 0;
-                link.setProperty("score", ++score);
+        VertexCache cache = session.getVertices();
+        if (cache == null) {
+            return null;
+        }
+
+        OrientVertex vertex = cache.getCreated(targetClass, id);
+        if (vertex != null) {
+            return vertex;
+        }
+
+        ORID rid = cache.get(targetClass, id);
+        if (rid != null) {
+            vertex = session.getGraph().getVertex(rid);
+            if (vertex == null) {
+                // Removed from the graph.
+                cache.invalidate(targetClass, id);
             }
         }
+        return vertex;
+    }
+
+    /**
+     * Relate every pair of technologies once.
+     *
+     * @param session The session.
+     * @param techs   The technologies.
+     */
+    protected void connectTechnologies(GraphSession session, List<OrientVertex> techs)
+    {
+        for (int i = 0; i < techs.size() - 1; i++) {
+            this.relateTechnology(session, techs.get(i), techs.subList(i + 1, techs.size()));
+        }
+    }
+
+    /**
+     * Increase the score of the "related" edges between a technology and others, creating the missing edges.
+     * The edges of the technology are read once instead of looking for every pair,
+     * the changes are sent with the rest of the transaction.
+     *
+     * @param session The session.
+     * @param tech    The technology.
+     * @param others  The technologies related to it.
+     */
+    protected void relateTechnology(GraphSession session, OrientVertex tech, Collection<OrientVertex> others)
+    {
+        ORID techId = tech.getIdentity();
+        Map<ORID, OrientEdge> related = new HashMap<>();
+
+        for (Edge edge : tech.getEdges(Direction.BOTH, "related")) {
+            OrientEdge link = (OrientEdge)edge;
+            ORID out = link.getOutVertex().getIdentity();
+            related.put(out.equals(techId) ? link.getInVertex().getIdentity() : out, link);
+        }
+
+        for (OrientVertex other : others) {
+            if (other.getIdentity().equals(techId)) {
+                continue;
+            }
+
+            OrientEdge link = related.get(other.getIdentity());
+            if (link == null) {
+                link = session.getGraph().addEdge(null, tech, other, "related");
+                related.put(other.getIdentity(), link);
+            }
+
+            int score = link.getProperty("score") != null ? (int) link.getProperty("score") : 0;
+            link.setProperty("score", ++score);
+        }
     }
 
     protected JSONObject getActivitySocialObject(JSONObject activity)
@@ -6,15 +6,18 @@
 
 package com.jimmystreams.social.strategies;
 
-import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.jimmystreams.social.GraphSession;
 import com.tinkerpop.blueprints.impls.orient.OrientVertex;
 import org.json.JSONObject;
 
+import java.util.Collection;
+import java.util.Collections;
+
 public class CommentVerbStrategy extends BaseActivityVerbStrategy
 {
-
-    public CommentVerbStrategy(OrientGraph graph) {
-        super(graph);
+    @Override
+    public Collection<String> getVerbs() {
+        return Collections.singletonList("comment");
     }
 
     @Override
@@ -34,7 +37,7 @@ public class CommentVerbStrategy extends BaseActivityVerbStrategy
     }
 
     @Override
-    protected void acknowledgeActivity(JSONObject activity, OrientVertex actor, OrientVertex object)
+    protected void acknowledgeActivity(GraphSession session, JSONObject activity, OrientVertex actor, OrientVertex object)
     {
         JSONObject activityTarget = (JSONObject) activity.get("target");
         if (activityTarget == null){
@@ -46,11 +49,10 @@ public class CommentVerbStrategy extends BaseActivityVerbStrategy
             return;
         }
 
-        OrientVertex target = this.findOrCreateVertex(activityTarget, "Article");
+        OrientVertex target = this.findOrCreateVertex(session, activityTarget, "Article");
 
         if (target != null) {
-            double score = target.getProperty("score");
-            target.setProperty("score", score + REPUTATION_FACTOR * 3.0);
+            this.increaseScore(session, target, REPUTATION_FACTOR * 3.0);
         }
     }
 
@@ -6,34 +6,37 @@
 
 package com.jimmystreams.social.strategies;
 
-import com.orientechnologies.common.collection.OMultiCollectionIterator;
+import com.jimmystreams.social.GraphSession;
 import com.tinkerpop.blueprints.Direction;
-import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.orient.OrientVertex;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 public class FollowVerbStrategy extends BaseActivityVerbStrategy
 {
-
-    public FollowVerbStrategy(OrientGraph graph) {
-        super(graph);
+    @Override
+    public Collection<String> getVerbs() {
+        return Collections.singletonList("follow");
     }
 
     @Override
-    protected void acknowledgeActivity(JSONObject activity, OrientVertex actor, OrientVertex object) {
+    protected void relationCreated(GraphSession session, JSONObject activity, OrientVertex actor, OrientVertex object) {
         if (object.getLabel().equals("Technology"))
         {
-            logger.info("Relate together technologies of actor");
-            OMultiCollectionIterator vertices = (OMultiCollectionIterator)actor.getVertices(Direction.OUT, "interested_in");
+            // The other technologies of the actor are already related together,
+            // only the pairs with the new one change.
+            logger.info("Relate the new technology with the others of actor");
             List<OrientVertex> technologies = new ArrayList<>();
 
-            while (vertices.hasNext()) {
-                technologies.add((OrientVertex)vertices.next());
+            for (Vertex vertex : actor.getVertices(Direction.OUT, "interested_in")) {
+                technologies.add((OrientVertex)vertex);
             }
-            this.connectTechnologies(technologies);
+            this.relateTechnology(session, object, technologies);
         }
 
     }
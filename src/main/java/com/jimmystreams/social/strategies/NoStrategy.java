@@ -6,14 +6,18 @@
 
 package com.jimmystreams.social.strategies;
 
-import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.jimmystreams.social.GraphSession;
 import org.json.JSONObject;
 
+import java.util.Collection;
+import java.util.Collections;
+
 public class NoStrategy extends BaseActivityVerbStrategy
 {
-
-    public NoStrategy(OrientGraph graph) {
-        super(graph);
+    @Override
+    public Collection<String> getVerbs() {
+        // Fallback for the verbs without strategy.
+        return Collections.emptyList();
     }
 
     @Override
@@ -32,7 +36,7 @@ public class NoStrategy extends BaseActivityVerbStrategy
     }
 
     @Override
-    public void handleActivity(JSONObject activity) {
+    public void handleActivity(GraphSession session, JSONObject activity) {
         // Nothing to do.
     }
 }
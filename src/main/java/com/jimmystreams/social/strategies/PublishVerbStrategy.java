@@ -6,20 +6,22 @@
 
 package com.jimmystreams.social.strategies;
 
-import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.jimmystreams.social.GraphSession;
 import com.tinkerpop.blueprints.impls.orient.OrientVertex;
 import com.tinkerpop.blueprints.Direction;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 public class PublishVerbStrategy extends BaseActivityVerbStrategy
 {
-
-    public PublishVerbStrategy(OrientGraph graph){
-        super(graph);
+    @Override
+    public Collection<String> getVerbs() {
+        return Collections.singletonList("publish");
     }
 
     @Override
@@ -40,7 +42,7 @@ public class PublishVerbStrategy extends BaseActivityVerbStrategy
     }
 
     @Override
-    protected void acknowledgeActivity(JSONObject activity, OrientVertex actor, OrientVertex object)
+    protected void acknowledgeActivity(GraphSession session, JSONObject activity, OrientVertex actor, OrientVertex object)
     {
         List<OrientVertex> technologies = new ArrayList<>();
 
@@ -51,26 +53,25 @@ public class PublishVerbStrategy extends BaseActivityVerbStrategy
             for (Object item : audience) {
                 String type = ((JSONObject) item).getString("objectType");
                 String className = this.findClassNameByType(type);
-                OrientVertex vertex = this.findOrCreateVertex((JSONObject) item, className);
+                OrientVertex vertex = this.findOrCreateVertex(session, (JSONObject) item, className);
 
                 // Update vertex score
-                double score = vertex.getProperty("score");
-                vertex.setProperty("score", score + this.findScoreByType(type));
+                this.increaseScore(session, vertex, this.findScoreByType(type));
 
                 // The edge never going to repeat on this type of activity
-                graph.addEdge(null, object, vertex, this.findEdgeNameByClass(className));
+                session.getGraph().addEdge(null, object, vertex, this.findEdgeNameByClass(className));
 
                 if (className.equals("Technology"))
                 {
                     // Link actor with technology if not exist
-                    this.findOrCreateEdge(actor, vertex, "publish_about", Direction.BOTH);
+                    this.findOrCreateEdge(session, actor, vertex, "publish_about", Direction.BOTH);
 
                     // collect technologies
                     technologies.add(vertex);
                 }
             }
 
-            this.connectTechnologies(technologies);
+            this.connectTechnologies(session, technologies);
         }
     }
 
@@ -6,15 +6,18 @@
 
 package com.jimmystreams.social.strategies;
 
-import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.jimmystreams.social.GraphSession;
 import com.tinkerpop.blueprints.impls.orient.OrientVertex;
 import org.json.JSONObject;
 
+import java.util.Collection;
+import java.util.Collections;
+
 public class ReadVerbStrategy extends BaseActivityVerbStrategy
 {
-
-    public ReadVerbStrategy(OrientGraph graph) {
-        super(graph);
+    @Override
+    public Collection<String> getVerbs() {
+        return Collections.singletonList("read");
     }
 
     @Override
@@ -58,9 +61,8 @@ public class ReadVerbStrategy extends BaseActivityVerbStrategy
     }
 
     @Override
-    protected void acknowledgeActivity(JSONObject activity, OrientVertex actor, OrientVertex object)
+    protected void acknowledgeActivity(GraphSession session, JSONObject activity, OrientVertex actor, OrientVertex object)
     {
-        double score = object.getProperty("score");
-        object.setProperty("score", score + REPUTATION_FACTOR * 1.0);
+        this.increaseScore(session, object, REPUTATION_FACTOR * 1.0);
     }
 }
@@ -6,14 +6,16 @@
 
 package com.jimmystreams.social.strategies;
 
-import com.tinkerpop.blueprints.impls.orient.OrientGraph;
 import org.json.JSONObject;
 
+import java.util.Collection;
+import java.util.Collections;
+
 public class ReviewVerbStrategy extends BaseActivityVerbStrategy
 {
-
-    public ReviewVerbStrategy(OrientGraph graph) {
-        super(graph);
+    @Override
+    public Collection<String> getVerbs() {
+        return Collections.singletonList("review");
     }
 
     @Override
@@ -6,14 +6,18 @@
 
 package com.jimmystreams.social.strategies;
 
-import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.jimmystreams.social.GraphSession;
 import com.tinkerpop.blueprints.impls.orient.OrientVertex;
 import org.json.JSONObject;
 
+import java.util.Arrays;
+import java.util.Collection;
+
 public class VoteVerbStrategy extends BaseActivityVerbStrategy
 {
-    public VoteVerbStrategy(OrientGraph graph) {
-        super(graph);
+    @Override
+    public Collection<String> getVerbs() {
+        return Arrays.asList("upvote", "downvote");
     }
 
     @Override
@@ -21,7 +25,6 @@ public class VoteVerbStrategy extends BaseActivityVerbStrategy
         return false;
     }
 
-
     @Override
     protected Boolean existObjectTypeInGraph(JSONObject object) {
         return object.getString("objectType").equals("post") || object.getString("objectType").equals("article") ;
@@ -33,7 +36,7 @@ public class VoteVerbStrategy extends BaseActivityVerbStrategy
     }
 
     @Override
-    protected void acknowledgeActivity(JSONObject activity, OrientVertex actor, OrientVertex object)
+    protected void acknowledgeActivity(GraphSession session, JSONObject activity, OrientVertex actor, OrientVertex object)
     {
 
         if (!object.getLabel().equals("Article")) {
@@ -42,8 +45,7 @@ public class VoteVerbStrategy extends BaseActivityVerbStrategy
 
         double likeValue = activity.getString("verb").equals("upvote") ? 1 : -1;
 
-        double score = object.getProperty("score");
-        object.setProperty("score", score + likeValue * REPUTATION_FACTOR * 1.0);
+        this.increaseScore(session, object, likeValue * REPUTATION_FACTOR * 1.0);
     }
 
     @Override
@@ -0,0 +1,135 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.spout;
+
+import java.util.function.LongSupplier;
+
+/**
+ * AIMD controller of the amount of activities in process.
+ * The limit grows by a fixed step while the complete latency stays under the target and nothing fails,
+ * and it is halved when the latency goes above the target or tuples fail (e.g. timeouts),
+ * so a slow store reduces the intake instead of causing a replay storm.
+ *
+ * All methods must be called from the spout thread.
+ */
+class AdaptiveRateController {
+    /**
+     * Time (ms) between adjustments of the limit.
+     */
+    private static final long INTERVAL = 1000;
+
+    /**
+     * Weight of the last latency in the moving average.
+     */
+    private static final double ALPHA = 0.2;
+
+    private static final double DECREASE = 0.5;
+
+    private final int min;
+    private final int max;
+    private final int step;
+    private final long targetLatency;
+    private final LongSupplier clock;
+
+    private int limit;
+    private double latency;
+    private int acks;
+    private int fails;
+    private boolean throttled;
+    private long lastAdjustment;
+
+    /**
+     * @param min           Minimum limit.
+     * @param max           Maximum limit.
+     * @param step          Increase of the limit per interval without congestion.
+     * @param targetLatency Maximum acceptable complete latency (ms).
+     */
+    AdaptiveRateController(int min, int max, int step, long targetLatency) {
+        this(min, max, step, targetLatency, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Current time (ms), a fake one in the tests.
+     */
+    AdaptiveRateController(int min, int max, int step, long targetLatency, LongSupplier clock) {
+        this.min = min;
+        this.max = max;
+        this.step = step;
+        this.targetLatency = targetLatency;
+        this.clock = clock;
+        this.limit = min;
+        this.lastAdjustment = clock.getAsLong();
+    }
+
+    /**
+     * @return Maximum amount of activities in process.
+     */
+    int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * @param pending Amount of activities in process.
+     *
+     * @return True when another activity can be emitted.
+     */
+    boolean allows(int pending) {
+        if (pending < this.limit) {
+            return true;
+        }
+        this.throttled = true;
+        return false;
+    }
+
+    /**
+     * @return Moving average of the complete latency (ms).
+     */
+    double getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * @param latency Time (ms) since the activity was emitted.
+     */
+    void acked(long latency) {
+        this.latency = this.latency == 0 ? latency : ALPHA * latency + (1 - ALPHA) * this.latency;
+        this.acks++;
+    }
+
+    void failed() {
+        this.fails++;
+    }
+
+    /**
+     * Adjust the limit once per interval.
+     *
+     * @return True when the limit changed.
+     */
+    boolean adjust() {
+        long now = this.clock.getAsLong();
+        if (now - this.lastAdjustment < INTERVAL) {
+            return false;
+        }
+        this.lastAdjustment = now;
+
+        int previous = this.limit;
+
+        if (this.fails > 0 || this.latency > this.targetLatency) {
+            this.limit = Math.max(this.min, (int) (this.limit * DECREASE));
+        }
+        // Only grow when the limit held activities back, otherwise it says nothing about the capacity.
+        else if (this.throttled && this.acks > 0) {
+            this.limit = Math.min(this.max, this.limit + this.step);
+        }
+
+        this.acks = 0;
+        this.fails = 0;
+        this.throttled = false;
+
+        return this.limit != previous;
+    }
+}
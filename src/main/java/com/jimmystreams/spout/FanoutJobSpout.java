@@ -0,0 +1,70 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.spout;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.jimmystreams.activity.ActivityEnvelope;
+import org.apache.log4j.Logger;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Values;
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Spout of the fan-out jobs queued by the SubscriptionsBolt.
+ * Every job expands one chunk of the audience of a stream, its message is deleted
+ * once the chunk is processed, so a failed chunk is received again on its own.
+ */
+public class FanoutJobSpout extends SqsPoolSpout {
+
+    private final static Logger logger = Logger.getLogger(FanoutJobSpout.class);
+
+    /**
+     * @param queueUrl URL for Amazon SQS queue of the fan-out jobs
+     * @param reliable Uses Storm's reliability facilities?
+     */
+    public FanoutJobSpout(String queueUrl, boolean reliable) {
+        super(queueUrl, reliable);
+    }
+
+    @Override
+    protected Fields getOutputFields() {
+        return new Fields("activity", "aid", "stream", "cursor", "offset", "replay");
+    }
+
+    /**
+     * The jobs do not go through the deduplication, nobody listens to their outcome.
+     */
+    @Override
+    protected boolean emitsActivityDone() {
+        return false;
+    }
+
+    /**
+     * Transform a job into a Storm Tuple.
+     *
+     * @param message The SQS message.
+     *
+     * @return Values The activity, its id and the position of the chunk, or null when the message is not a valid job.
+     */
+    @Override
+    protected Values messageToTuple(Message message) {
+        try {
+            JSONObject job = new JSONObject(message.getBody());
+            ActivityEnvelope activity = ActivityEnvelope.parse(job.getString("activity"));
+
+            return new Values(activity, activity.getAid(),
+                    Document.parse(job.getString("stream")), job.getString("cursor"), job.getInt("offset"));
+        }
+        catch (JSONException | JsonParseException e) {
+            logger.error(String.format("Error parsing job with id %s: %s", message.getMessageId(), e.toString()));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.spout;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.*;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Coalesce deletes and visibility changes into batch requests of up to 10 entries.
+ * Batches are sent when they are full or when the flush interval expires.
+ * Entries that fail inside a batch are retried a few times, unless the failure was caused by the request.
+ *
+ * Only the last request of a message waiting in the batcher is sent: a visibility change replaces the
+ * previous one (e.g. a fail after a heartbeat extension) and a delete discards it.
+ * Every request gets a generation, and a retry is dropped once a newer request of the message was made,
+ * even if the newer one was already sent: a late retry of an extension must not hide a failed message again.
+ *
+ * All methods must be called from the spout thread, only the retries come from the client threads.
+ */
+class SqsBatcher {
+    /**
+     * Maximum amount of entries per batch request allowed by SQS.
+     */
+    static final int MAX_ENTRIES = 10;
+
+    /**
+     * Attempts for each entry before giving up.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final AmazonSQSAsync sqs;
+    private final String queueUrl;
+    private final long flushInterval;
+
+    private final Map<String, Entry> deletes = new LinkedHashMap<>();
+    private final Map<String, Entry> visibilityChanges = new LinkedHashMap<>();
+    private final Queue<Entry> retries = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Generation of the last request of every message not done yet, by receipt handle.
+     */
+    private final Map<String, Long> generations = new ConcurrentHashMap<>();
+    private long generation;
+    private long lastFlush = System.currentTimeMillis();
+
+    private final static Logger logger = Logger.getLogger(SqsBatcher.class);
+
+    /**
+     * @param sqs           The SQS client.
+     * @param queueUrl      The queue of the messages.
+     * @param flushInterval Maximum time (ms) an entry waits before being sent.
+     */
+    SqsBatcher(AmazonSQSAsync sqs, String queueUrl, long flushInterval) {
+        this.sqs = sqs;
+        this.queueUrl = queueUrl;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Delete a message.
+     *
+     * @param receiptHandle The receipt handle of the message.
+     */
+    void delete(String receiptHandle) {
+        this.add(this.newEntry(receiptHandle, Entry.DELETE));
+    }
+
+    /**
+     * Change the visibility timeout of a message.
+     *
+     * @param receiptHandle     The receipt handle of the message.
+     * @param visibilityTimeout The new timeout (seconds).
+     */
+    void changeVisibility(String receiptHandle, int visibilityTimeout) {
+        this.add(this.newEntry(receiptHandle, visibilityTimeout));
+    }
+
+    private Entry newEntry(String receiptHandle, int visibilityTimeout) {
+        Entry entry = new Entry(receiptHandle, visibilityTimeout, ++this.generation, 1);
+        this.generations.put(receiptHandle, entry.generation);
+        return entry;
+    }
+
+    /**
+     * Queue the retries and send the batches waiting longer than the flush interval.
+     * Call it periodically.
+     */
+    void tick() {
+        Entry retry;
+        while ((retry = this.retries.poll()) != null) {
+            // A newer request of the message was made meanwhile, sent or not.
+            if (retry.generation == this.generations.getOrDefault(retry.receiptHandle, -1L)) {
+                this.add(retry);
+            }
+        }
+
+        if (System.currentTimeMillis() - this.lastFlush >= this.flushInterval) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Send all the pending entries.
+     */
+    void flush() {
+        this.lastFlush = System.currentTimeMillis();
+
+        while (!this.deletes.isEmpty()) {
+            this.sendDeletes(this.drain(this.deletes));
+        }
+
+        while (!this.visibilityChanges.isEmpty()) {
+            this.sendVisibilityChanges(this.drain(this.visibilityChanges));
+        }
+    }
+
+    private void add(Entry entry) {
+        String receiptHandle = entry.receiptHandle;
+
+        if (entry.visibilityTimeout == Entry.DELETE) {
+            this.visibilityChanges.remove(receiptHandle);
+            this.deletes.put(receiptHandle, entry);
+
+            if (this.deletes.size() >= MAX_ENTRIES) {
+                this.sendDeletes(this.drain(this.deletes));
+            }
+            return;
+        }
+
+        // The message is being deleted, there is nothing to change.
+        if (this.deletes.containsKey(receiptHandle)) {
+            return;
+        }
+
+        // Remove first, so the replacement keeps the order of the requests.
+        this.visibilityChanges.remove(receiptHandle);
+        this.visibilityChanges.put(receiptHandle, entry);
+
+        if (this.visibilityChanges.size() >= MAX_ENTRIES) {
+            this.sendVisibilityChanges(this.drain(this.visibilityChanges));
+        }
+    }
+
+    /**
+     * Take up to a batch of entries, the oldest ones.
+     */
+    private List<Entry> drain(Map<String, Entry> pending) {
+        List<Entry> drained = new ArrayList<>(Math.min(pending.size(), MAX_ENTRIES));
+        Iterator<Entry> iterator = pending.values().iterator();
+
+        while (iterator.hasNext() && drained.size() < MAX_ENTRIES) {
+            drained.add(iterator.next());
+            iterator.remove();
+        }
+        return drained;
+    }
+
+    private void sendDeletes(final List<Entry> batch) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), batch.get(i).receiptHandle));
+        }
+
+        try {
+            this.sqs.deleteMessageBatchAsync(new DeleteMessageBatchRequest(this.queueUrl, entries),
+                    new AsyncHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult>() {
+                        @Override
+                        public void onError(Exception e) {
+                            logger.error(String.format("AWS Exception deleting %d messages: %s", batch.size(), e.toString()));
+                            retry(batch);
+                        }
+
+                        @Override
+                        public void onSuccess(DeleteMessageBatchRequest request, DeleteMessageBatchResult result) {
+                            completed(batch, result.getFailed());
+                        }
+                    });
+        }
+        catch (AmazonClientException e) {
+            logger.error(String.format("AWS Exception %s", e.toString()));
+            this.retry(batch);
+        }
+    }
+
+    private void sendVisibilityChanges(final List<Entry> batch) {
+        // Every entry carries its own timeout, extensions and releases share the batch.
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(i), batch.get(i).receiptHandle)
+                    .withVisibilityTimeout(batch.get(i).visibilityTimeout));
+        }
+
+        try {
+            this.sqs.changeMessageVisibilityBatchAsync(new ChangeMessageVisibilityBatchRequest(this.queueUrl, entries),
+                    new AsyncHandler<ChangeMessageVisibilityBatchRequest, ChangeMessageVisibilityBatchResult>() {
+                        @Override
+                        public void onError(Exception e) {
+                            logger.error(String.format("AWS Exception changing visibility of %d messages: %s", batch.size(), e.toString()));
+                            retry(batch);
+                        }
+
+                        @Override
+                        public void onSuccess(ChangeMessageVisibilityBatchRequest request, ChangeMessageVisibilityBatchResult result) {
+                            completed(batch, result.getFailed());
+                        }
+                    });
+        }
+        catch (AmazonClientException e) {
+            logger.error(String.format("AWS Exception %s", e.toString()));
+            this.retry(batch);
+        }
+    }
+
+    /**
+     * Forget the entries done and retry the ones of a partial batch that failed because of SQS.
+     * Failures caused by the request (e.g. an expired receipt handle) are not retried.
+     */
+    private void completed(List<Entry> batch, List<BatchResultErrorEntry> failed) {
+        Set<Entry> done = new HashSet<>(batch);
+
+        for (BatchResultErrorEntry error : failed) {
+            Entry entry = batch.get(Integer.parseInt(error.getId()));
+            logger.warn(String.format("Batch entry %s failed: %s", entry.receiptHandle, error.getMessage()));
+
+            if (!error.isSenderFault()) {
+                done.remove(entry);
+                this.retry(Collections.singletonList(entry));
+            }
+        }
+
+        for (Entry entry : done) {
+            this.done(entry);
+        }
+    }
+
+    private void retry(List<Entry> batch) {
+        for (Entry entry : batch) {
+            if (entry.attempts < MAX_ATTEMPTS) {
+                this.retries.add(new Entry(entry.receiptHandle, entry.visibilityTimeout, entry.generation, entry.attempts + 1));
+            }
+            else {
+                logger.error(String.format("Giving up on message %s after %d attempts", entry.receiptHandle, entry.attempts));
+                this.done(entry);
+            }
+        }
+    }
+
+    /**
+     * Forget the generation of a message once its last request is done, a newer request keeps its own.
+     */
+    private void done(Entry entry) {
+        this.generations.remove(entry.receiptHandle, entry.generation);
+    }
+
+    private static class Entry {
+        /**
+         * Visibility timeout used to mark the deletes.
+         */
+        private static final int DELETE = -1;
+
+        private final String receiptHandle;
+        private final int visibilityTimeout;
+
+        /**
+         * Order of the request among all the requests of the batcher, kept by its retries.
+         */
+        private final long generation;
+        private final int attempts;
+
+        private Entry(String receiptHandle, int visibilityTimeout, long generation, int attempts) {
+            this.receiptHandle = receiptHandle;
+            this.visibilityTimeout = visibilityTimeout;
+            this.generation = generation;
+            this.attempts = attempts;
+        }
+    }
+}
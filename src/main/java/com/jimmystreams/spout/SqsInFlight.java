@@ -0,0 +1,75 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.spout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Messages received and not yet acknowledged or failed, with the time when they become visible again.
+ * Messages are registered by the receivers as soon as they arrive, so messages waiting
+ * in the local buffer are also tracked.
+ */
+class SqsInFlight {
+    private final int visibilityTimeout;
+    private final long timeout;
+    private final long margin;
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+
+    /**
+     * @param visibilityTimeout The visibility timeout (seconds) of the received messages.
+     */
+    SqsInFlight(int visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+        this.timeout = visibilityTimeout * 1000L;
+        // Extend when only a third of the timeout is left.
+        this.margin = this.timeout / 3;
+    }
+
+    /**
+     * @return The visibility timeout (seconds) of the received messages.
+     */
+    int getVisibilityTimeout() {
+        return this.visibilityTimeout;
+    }
+
+    void received(String receiptHandle) {
+        this.deadlines.put(receiptHandle, System.currentTimeMillis() + this.timeout);
+    }
+
+    void done(String receiptHandle) {
+        this.deadlines.remove(receiptHandle);
+    }
+
+    int size() {
+        return this.deadlines.size();
+    }
+
+    /**
+     * Find the messages about to become visible again.
+     * Their deadline is moved forward, assuming the caller extends their visibility timeout.
+     *
+     * @return The receipt handles of the messages.
+     */
+    List<String> expiring() {
+        long now = System.currentTimeMillis();
+        List<String> expiring = new ArrayList<>();
+
+        for (Map.Entry<String, Long> entry : this.deadlines.entrySet()) {
+            if (entry.getValue() - now < this.margin) {
+                // Ignore the messages finished meanwhile.
+                if (this.deadlines.replace(entry.getKey(), entry.getValue(), now + this.timeout)) {
+                    expiring.add(entry.getKey());
+                }
+            }
+        }
+
+        return expiring;
+    }
+}
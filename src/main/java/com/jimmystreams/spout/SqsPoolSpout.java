@@ -6,16 +6,15 @@
 
 package com.jimmystreams.spout;
 
-import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.sqs.AmazonSQSAsync;
 import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
-import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 
+import org.apache.storm.metric.api.CountMetric;
+import org.apache.storm.metric.api.IMetric;
 import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.base.BaseRichSpout;
@@ -25,20 +24,50 @@ import org.apache.storm.tuple.Values;
 import org.apache.storm.utils.Utils;
 import org.apache.log4j.Logger;
 
-import org.json.JSONObject;
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.util.ExpiringCache;
+import org.json.JSONException;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 public class SqsPoolSpout extends BaseRichSpout {
+    /**
+     * Stream with the outcome of the activities: ("aid", "completed").
+     * Emitted once the tuple tree of an activity completes or fails.
+     */
+    public static final String ACTIVITY_DONE_STREAM = "activityDone";
+
+    /**
+     * Time (ms) between checks of the messages about to become visible again.
+     */
+    private static final long HEARTBEAT_INTERVAL = 1000;
+
     private final String queueUrl;
     private int sleepTime = 2000;
     private int batch = 5;
     private final boolean reliable;
 
+    private int receivers = 0;
+    private int bufferSize = 100;
+    private int waitTime = 20;
+
     private SpoutOutputCollector collector;
     private AmazonSQSAsync sqs;
     private LinkedBlockingQueue<Message> queue;
+    private SqsPrefetcher prefetcher;
+    private SqsBatcher batcher;
+    private SqsInFlight inFlight;
+    private long lastHeartbeat;
+    private CountMetric visibilityExtensions;
+
+    // Activities of the pending messages, and activities failed that will be replayed.
+    private Map<String, Pending> pending;
+    private ExpiringCache<String, Boolean> failedActivities;
+
+    private AdaptiveRateController rateController;
 
     private final static Logger logger = Logger.getLogger(SqsPoolSpout.class);
 
@@ -55,25 +84,142 @@ public class SqsPoolSpout extends BaseRichSpout {
     public void open(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, SpoutOutputCollector collector) {
         this.collector = collector;
         this.queue = new LinkedBlockingQueue<>();
-        this.sqs = new AmazonSQSAsyncClient(new ProfileCredentialsProvider());
+        this.sqs = this.createClient();
         this.sleepTime = ((Long)conf.get("sqs_sleep_time")).intValue();
         this.batch = ((Long)conf.get("sqs_batch")).intValue();
+        this.receivers = ((Long)conf.get("sqs_receivers")).intValue();
+        this.bufferSize = ((Long)conf.get("sqs_buffer")).intValue();
+        this.waitTime = ((Long)conf.get("sqs_wait_time")).intValue();
+
+        // Deletes and visibility changes are sent in batches.
+        this.batcher = new SqsBatcher(this.sqs, this.queueUrl, ((Long)conf.get("sqs_flush_interval")).longValue());
+
+        // Messages are kept invisible while their activity is processed.
+        this.inFlight = new SqsInFlight(((Long)conf.get("sqs_visibility_timeout")).intValue());
+        this.lastHeartbeat = System.currentTimeMillis();
+        context.registerMetric("sqs_in_flight", new IMetric() {
+            @Override
+            public Object getValueAndReset() {
+                return inFlight.size();
+            }
+        }, 60);
+        this.visibilityExtensions = context.registerMetric("sqs_visibility_extensions", new CountMetric(), 60);
+
+        // Replays must not be taken as duplicates.
+        this.pending = new ConcurrentHashMap<>();
+        this.failedActivities = new ExpiringCache<>(
+                ((Long)conf.get("dedup_capacity")).intValue(), ((Long)conf.get("dedup_window")).longValue());
+
+        // Activities in process follow the capacity of the topology.
+        this.rateController = new AdaptiveRateController(
+                ((Long)conf.get("sqs_rate_min")).intValue(),
+                ((Long)conf.get("sqs_rate_max")).intValue(),
+                ((Long)conf.get("sqs_rate_step")).intValue(),
+                ((Long)conf.get("sqs_rate_target_latency")).longValue());
+        context.registerMetric("sqs_rate_limit", new IMetric() {
+            @Override
+            public Object getValueAndReset() {
+                return rateController.getLimit();
+            }
+        }, 60);
+        context.registerMetric("sqs_complete_latency", new IMetric() {
+            @Override
+            public Object getValueAndReset() {
+                return rateController.getLatency();
+            }
+        }, 60);
+
+        // Prefetching mode: background receivers fill the buffer.
+        if (this.receivers > 0) {
+            this.prefetcher = new SqsPrefetcher(this.sqs, this.queueUrl, this.receivers, this.getHighWater(),
+                    this.waitTime, this.sleepTime, this.inFlight);
+            this.prefetcher.start();
+        }
+    }
+
+    /**
+     * Create the SQS client.
+     * Override to consume from a local fake of SQS.
+     *
+     * @return The client.
+     */
+    protected AmazonSQSAsync createClient() {
+        return new AmazonSQSAsyncClient(new ProfileCredentialsProvider());
     }
 
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
-        declarer.declare(new Fields("activity"));
+        declarer.declare(this.getOutputFields());
+        if (this.emitsActivityDone()) {
+            declarer.declareStream(ACTIVITY_DONE_STREAM, new Fields("aid", "completed"));
+        }
+    }
+
+    /**
+     * @return True when the outcome of every activity is emitted in the "activityDone" stream.
+     */
+    protected boolean emitsActivityDone() {
+        return true;
+    }
+
+    /**
+     * Tell the deduplication that an activity finished.
+     *
+     * @param aid       The id of the activity.
+     * @param completed True when its tuple tree completed, false when it failed.
+     */
+    private void emitActivityDone(Object aid, boolean completed) {
+        if (this.emitsActivityDone()) {
+            this.collector.emit(ACTIVITY_DONE_STREAM, new Values(aid, completed));
+        }
+    }
+
+    /**
+     * @return The fields of the tuples emitted, "replay" is always the last one.
+     */
+    protected Fields getOutputFields() {
+        return new Fields("activity", "aid", "replay");
     }
 
     @Override
     public void nextTuple() {
+        // Send the deletes and visibility changes waiting too long.
+        this.heartbeat();
+        this.batcher.tick();
+
+        // Acks and fails are only received in reliable mode.
+        if (this.reliable) {
+            // Receive less when the topology slows down.
+            if (this.rateController.adjust() && this.prefetcher != null) {
+                this.prefetcher.setHighWater(this.getHighWater());
+            }
+            if (!this.rateController.allows(this.pending.size())) {
+                return;
+            }
+        }
+
+        // Messages are received in background, never wait for the network.
+        // When the buffer is empty Storm applies its own wait strategy.
+        if (this.prefetcher != null) {
+            Message message = this.prefetcher.poll();
+            if (message != null) {
+                this.emitMessage(message);
+            }
+            return;
+        }
+
         // Look for more messages when the last messages were processed
         if (this.queue.isEmpty()) {
             // Request the queue for more messages
             ReceiveMessageResult receiveMessageResult = this.sqs.receiveMessage(
-                    new ReceiveMessageRequest(this.queueUrl).withMaxNumberOfMessages(this.batch));
+                    new ReceiveMessageRequest(this.queueUrl)
+                            .withMaxNumberOfMessages(this.batch)
+                            .withVisibilityTimeout(this.inFlight.getVisibilityTimeout()));
 
             // Store the messages locally in memory
+            for (Message message : receiveMessageResult.getMessages()) {
+                this.inFlight.received(message.getReceiptHandle());
+            }
             this.queue.addAll(receiveMessageResult.getMessages());
         }
 
@@ -81,33 +227,7 @@ public class SqsPoolSpout extends BaseRichSpout {
         Message message = this.queue.poll();
 
         if (message != null) {
-            // Unique identifier for the message.
-            String msgId = message.getMessageId();
-            // Identifier associated with the act of receiving the message.
-            // A new receipt handle is returned every time you receive a message.
-            String msgHandler = message.getReceiptHandle();
-
-            // Parse the message and convert into a tuple
-            Values tuple = messageToTuple(message);
-
-            // Fail when the message cannot be parsed
-            if (tuple == null) {
-                logger.error(String.format("Wrong format for message with id %s and handler %s", msgId, msgHandler));
-                this.fail(msgHandler);
-            }
-            else {
-                // Process in a reliable mode
-                if (this.reliable) {
-                    logger.info(String.format("Emit activity in reliable mode for processing. %s", tuple));
-                    collector.emit(tuple, msgHandler);
-                }
-                // Give ack anyway
-                else {
-                    logger.info(String.format("Emit activity for processing. %s", tuple));
-                    this.sqs.deleteMessageAsync(new DeleteMessageRequest(this.queueUrl, msgHandler));
-                    collector.emit(tuple);
-                }
-            }
+            this.emitMessage(message);
         }
         // Origin queue and memory queue are empty
         else {
@@ -117,14 +237,83 @@ public class SqsPoolSpout extends BaseRichSpout {
         }
     }
 
+    /**
+     * Messages prefetched, never more than the activities the topology can take.
+     */
+    private int getHighWater() {
+        return this.reliable ? Math.min(this.bufferSize, this.rateController.getLimit()) : this.bufferSize;
+    }
+
+    /**
+     * Extend the visibility timeout of the messages still in process and about to become visible again.
+     * Otherwise SQS delivers them again while their tuple tree is running, e.g. during a big fan-out.
+     * Extensions stop when the message is acked or failed, Storm's message timeout bounds them.
+     */
+    private void heartbeat() {
+        if (System.currentTimeMillis() - this.lastHeartbeat < HEARTBEAT_INTERVAL) {
+            return;
+        }
+        this.lastHeartbeat = System.currentTimeMillis();
+
+        List<String> expiring = this.inFlight.expiring();
+        for (String msgHandler : expiring) {
+            this.batcher.changeVisibility(msgHandler, this.inFlight.getVisibilityTimeout());
+        }
+        this.visibilityExtensions.incrBy(expiring.size());
+    }
+
+    /**
+     * Emit a message as a tuple.
+     *
+     * @param message The SQS message.
+     */
+    private void emitMessage(Message message) {
+        // Unique identifier for the message.
+        String msgId = message.getMessageId();
+        // Identifier associated with the act of receiving the message.
+        // A new receipt handle is returned every time you receive a message.
+        String msgHandler = message.getReceiptHandle();
+
+        // Parse the message and convert into a tuple
+        Values tuple = messageToTuple(message);
+
+        // Fail when the message cannot be parsed
+        if (tuple == null) {
+            logger.error(String.format("Wrong format for message with id %s and handler %s", msgId, msgHandler));
+            this.fail(msgHandler);
+        }
+        else {
+            // Process in a reliable mode
+            if (this.reliable) {
+                String aid = (String)tuple.get(1);
+                tuple.add(this.failedActivities.get(aid) != null);
+                this.failedActivities.invalidate(aid);
+                this.pending.put(msgHandler, new Pending(aid));
+
+                logger.info(String.format("Emit activity in reliable mode for processing. %s", tuple));
+                collector.emit(tuple, msgHandler);
+            }
+            // Give ack anyway
+            else {
+                logger.info(String.format("Emit activity for processing. %s", tuple));
+                tuple.add(false);
+                this.inFlight.done(msgHandler);
+                this.batcher.delete(msgHandler);
+                collector.emit(tuple);
+                this.emitActivityDone(tuple.get(1), true);
+            }
+        }
+    }
+
     /**
      * Transform a SQS message into a Storm Tuple.
      *
      * @param message The SQS message.
      *
-     * @return Values The tuple.
+     * @return Values The activity and its id, followed by any other field declared, or null when
+     *         the message is not a valid activity. The spout appends the "replay" field.
      */
-    private Values messageToTuple(Message message) {
+    protected Values messageToTuple(Message message) {
         String msgHandler = message.getReceiptHandle();
         String msgId = message.getMessageId();
 
@@ -134,10 +323,15 @@ public class SqsPoolSpout extends BaseRichSpout {
         logger.info(String.format("Processing message with id %s and handler %s", msgId, msgHandler));
         logger.info(rawBody);
 
-        JSONObject jsonBody = new JSONObject(rawBody);
-        Values tuple = new Values(jsonBody);
-
-        return tuple;
+        // Parse the activity only once, bolts work with the envelope.
+        try {
+            ActivityEnvelope activity = ActivityEnvelope.parse(rawBody);
+            return new Values(activity, activity.getAid());
+        }
+        catch (JSONException e) {
+            logger.error(String.format("Error parsing message with id %s: %s", msgId, e.toString()));
+            return null;
+        }
     }
 
     /**
@@ -169,32 +363,52 @@ public class SqsPoolSpout extends BaseRichSpout {
     @Override
     public void ack(Object msgHandler) {
         // Only called in reliable mode.
-        try {
-            logger.info(String.format("Ack for %s", msgHandler));
-            this.sqs.deleteMessageAsync(new DeleteMessageRequest(this.queueUrl, (String) msgHandler));
-        }
-        catch (AmazonClientException e) {
-            logger.error(String.format("AWS Exception %s", e.toString()));
+        logger.info(String.format("Ack for %s", msgHandler));
+        this.inFlight.done((String) msgHandler);
+        Pending pending = this.pending.remove(msgHandler);
+        if (pending != null) {
+            this.rateController.acked(System.currentTimeMillis() - pending.emitted);
+            this.emitActivityDone(pending.aid, true);
         }
+        this.batcher.delete((String) msgHandler);
     }
 
     @Override
     public void fail(Object msgHandler) {
         // Only called in reliable mode.
-        try {
-            logger.warn(String.format("Message %s fails", msgHandler));
-            this.sqs.changeMessageVisibilityAsync(new ChangeMessageVisibilityRequest(this.queueUrl, (String) msgHandler, 0));
-        }
-        catch (AmazonClientException e) {
-            logger.error(String.format("AWS Exception %s", e.toString()));
+        // Make the message visible again.
+        logger.warn(String.format("Message %s fails", msgHandler));
+        this.inFlight.done((String) msgHandler);
+        Pending pending = this.pending.remove(msgHandler);
+        if (pending != null) {
+            this.rateController.failed();
+            this.failedActivities.put(pending.aid, Boolean.TRUE);
+            this.emitActivityDone(pending.aid, false);
         }
+        this.batcher.changeVisibility((String) msgHandler, 0);
     }
 
     @Override
     public void close() {
+        if (this.prefetcher != null) {
+            this.prefetcher.stop();
+        }
+        this.batcher.flush();
         this.sqs.shutdown();
         // Works around a known bug in the Async clients
         // @see https://forums.aws.amazon.com/thread.jspa?messageID=305371
-        ((AmazonSQSAsyncClient) sqs).getExecutorService().shutdownNow();
+        if (this.sqs instanceof AmazonSQSAsyncClient) {
+            ((AmazonSQSAsyncClient) this.sqs).getExecutorService().shutdownNow();
+        }
+    }
+
+    private static class Pending {
+        private final String aid;
+        private final long emitted;
+
+        private Pending(String aid) {
+            this.aid = aid;
+            this.emitted = System.currentTimeMillis();
+        }
     }
-}
\ No newline at end of file
+}
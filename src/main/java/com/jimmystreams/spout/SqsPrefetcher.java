@@ -0,0 +1,141 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.spout;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background receivers that keep a local buffer of SQS messages.
+ * Each receiver does long polls of up to 10 messages and pauses while the buffer is above the high-water mark,
+ * so the spout can take messages without waiting for the network.
+ */
+class SqsPrefetcher {
+    /**
+     * Maximum amount of messages per receive request allowed by SQS.
+     */
+    static final int MAX_MESSAGES = 10;
+
+    /**
+     * Time (ms) a receiver waits before checking again a full buffer.
+     */
+    private static final long PAUSE = 50;
+
+    private final AmazonSQS sqs;
+    private final String queueUrl;
+    private final int receivers;
+    private final int waitTime;
+    private final int errorSleepTime;
+    private final SqsInFlight inFlight;
+    private volatile int highWater;
+
+    private final LinkedBlockingQueue<Message> buffer = new LinkedBlockingQueue<>();
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    private final static Logger logger = Logger.getLogger(SqsPrefetcher.class);
+
+    /**
+     * @param sqs            The SQS client.
+     * @param queueUrl       The queue to consume from.
+     * @param receivers      Amount of concurrent receivers.
+     * @param highWater      Receivers pause when the buffer has this amount of messages.
+     * @param waitTime       Long polling time (seconds) of each receive request.
+     * @param errorSleepTime Time (ms) a receiver waits after a failed request.
+     * @param inFlight       Tracker of the received messages.
+     */
+    SqsPrefetcher(AmazonSQS sqs, String queueUrl, int receivers, int highWater, int waitTime, int errorSleepTime,
+                  SqsInFlight inFlight) {
+        this.sqs = sqs;
+        this.queueUrl = queueUrl;
+        this.receivers = receivers;
+        this.highWater = highWater;
+        this.waitTime = waitTime;
+        this.errorSleepTime = errorSleepTime;
+        this.inFlight = inFlight;
+    }
+
+    void start() {
+        this.running = true;
+        this.executor = Executors.newFixedThreadPool(this.receivers);
+
+        for (int i = 0; i < this.receivers; i++) {
+            this.executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    receive();
+                }
+            });
+        }
+    }
+
+    void stop() {
+        this.running = false;
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * @return The next message or null when the buffer is empty. It never blocks.
+     */
+    Message poll() {
+        return this.buffer.poll();
+    }
+
+    int size() {
+        return this.buffer.size();
+    }
+
+    /**
+     * The buffer can exceed the mark by at most one receive per receiver.
+     *
+     * @param highWater Amount of messages that pauses the receivers.
+     */
+    void setHighWater(int highWater) {
+        this.highWater = highWater;
+    }
+
+    private void receive() {
+        ReceiveMessageRequest request = new ReceiveMessageRequest(this.queueUrl)
+                .withMaxNumberOfMessages(MAX_MESSAGES)
+                .withWaitTimeSeconds(this.waitTime)
+                .withVisibilityTimeout(this.inFlight.getVisibilityTimeout());
+
+        try {
+            while (this.running && !Thread.currentThread().isInterrupted()) {
+                if (this.buffer.size() >= this.highWater) {
+                    TimeUnit.MILLISECONDS.sleep(PAUSE);
+                    continue;
+                }
+
+                try {
+                    List<Message> messages = this.sqs.receiveMessage(request).getMessages();
+                    // Track them before buffering, the visibility timeout is already running.
+                    for (Message message : messages) {
+                        this.inFlight.received(message.getReceiptHandle());
+                    }
+                    this.buffer.addAll(messages);
+                }
+                catch (AmazonClientException e) {
+                    logger.error(String.format("AWS Exception %s", e.toString()));
+                    TimeUnit.MILLISECONDS.sleep(this.errorSleepTime);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
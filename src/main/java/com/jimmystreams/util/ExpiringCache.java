@@ -0,0 +1,82 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache.
+ * The least recently used entry is evicted when the cache is full and
+ * entries older than the time to live are discarded when read.
+ *
+ * @param <K> Type of the keys.
+ * @param <V> Type of the values.
+ */
+public class ExpiringCache<K, V> {
+    private final long ttl;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    /**
+     * @param maxSize Maximum amount of entries.
+     * @param ttl     Time (ms) an entry remains valid.
+     */
+    public ExpiringCache(final int maxSize, long ttl) {
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return this.size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key The key.
+     *
+     * @return The value or null when it is missing or expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = this.entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() - entry.created > this.ttl) {
+            this.entries.remove(key);
+            return null;
+        }
+
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        this.entries.put(key, new Entry<>(value));
+    }
+
+    public synchronized void invalidate(K key) {
+        this.entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long created;
+
+        private Entry(V value) {
+            this.value = value;
+            this.created = System.currentTimeMillis();
+        }
+    }
+}
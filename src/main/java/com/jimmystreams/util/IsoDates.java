@@ -0,0 +1,101 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.util;
+
+import java.text.ParseException;
+
+/**
+ * Parser for the UTC timestamps of the activities, e.g. "2016-05-21T18:30:00.123Z".
+ * Unlike SimpleDateFormat it is thread-safe and does not allocate, so it can be shared by all the tasks.
+ *
+ * It differs from the SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'") used before:
+ * the 'Z' is read as UTC, while the old pattern took it as a literal and used the time zone of the JVM;
+ * the digits after the dot are a fraction of second (".5" is 500 ms, it was 5 ms);
+ * the fraction is optional; and dates before 1582 use the proleptic Gregorian calendar.
+ */
+public final class IsoDates {
+
+    private IsoDates() { }
+
+    /**
+     * Parse a timestamp with format yyyy-MM-dd'T'HH:mm:ss[.SSS]'Z'.
+     * The fraction of second is optional and digits beyond milliseconds are ignored.
+     *
+     * @param date The timestamp.
+     *
+     * @return The epoch milliseconds.
+     *
+     * @throws ParseException When the timestamp does not match the format.
+     */
+    public static long parseMillis(CharSequence date) throws ParseException {
+        int length = date.length();
+        if (length < 20
+                || date.charAt(4) != '-' || date.charAt(7) != '-' || date.charAt(10) != 'T'
+                || date.charAt(13) != ':' || date.charAt(16) != ':' || date.charAt(length - 1) != 'Z') {
+            throw new ParseException(String.format("Unparseable date: \"%s\"", date), 0);
+        }
+
+        int year = digits(date, 0, 4);
+        int month = digits(date, 5, 2);
+        int day = digits(date, 8, 2);
+        int hour = digits(date, 11, 2);
+        int minute = digits(date, 14, 2);
+        int second = digits(date, 17, 2);
+
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+            throw new ParseException(String.format("Unparseable date: \"%s\"", date), 0);
+        }
+
+        // Fraction of second, scaled to milliseconds.
+        int millis = 0;
+        if (length > 20) {
+            if (date.charAt(19) != '.' || length == 21) {
+                throw new ParseException(String.format("Unparseable date: \"%s\"", date), 19);
+            }
+
+            int scale = 100;
+            for (int i = 20; i < length - 1; i++) {
+                int digit = digit(date, i);
+                millis += digit * scale;
+                scale /= 10;
+            }
+        }
+
+        long days = daysFromCivil(year, month, day);
+        return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + millis;
+    }
+
+    /**
+     * Days since 1970-01-01 of a date of the proleptic Gregorian calendar.
+     *
+     * see: http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static int digits(CharSequence date, int start, int count) throws ParseException {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            value = value * 10 + digit(date, i);
+        }
+        return value;
+    }
+
+    private static int digit(CharSequence date, int position) throws ParseException {
+        char c = date.charAt(position);
+        if (c < '0' || c > '9') {
+            throw new ParseException(String.format("Unparseable date: \"%s\"", date), position);
+        }
+        return c - '0';
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.util;
+
+import com.orientechnologies.common.io.OIOException;
+import com.orientechnologies.orient.core.db.OPartitionedDatabasePool;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.exception.ODatabaseException;
+import com.orientechnologies.orient.core.exception.OStorageException;
+import org.apache.log4j.Logger;
+import org.apache.storm.task.TopologyContext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Pool of connections to an OrientDB database shared by the tasks of a component in a worker.
+ * Every command borrows a connection and returns it when finished.
+ * When the connection is lost the pool is created again and the command retried,
+ * so the tasks recover without restarting the worker.
+ */
+public class OrientDBPool {
+    /**
+     * Attempts for each command, the pool is reset between attempts.
+     */
+    private static final int MAX_ATTEMPTS = 2;
+
+    private static final Map<String, OrientDBPool> pools = new HashMap<>();
+
+    private final String key;
+    private final String dsn;
+    private final String user;
+    private final String password;
+    private final int size;
+    private int references;
+    private volatile OPartitionedDatabasePool pool;
+
+    private final static Logger logger = Logger.getLogger(OrientDBPool.class);
+
+    private OrientDBPool(String key, String dsn, String user, String password, int size) {
+        this.key = key;
+        this.dsn = dsn;
+        this.user = user;
+        this.password = password;
+        this.size = size;
+        this.pool = this.createPool();
+    }
+
+    /**
+     * Get the pool of a database for the component of the task, it is created on the first call.
+     * The pool has a connection per task of the component in the worker.
+     * Every call must be paired with a call to {@link #release()}.
+     *
+     * @param context  The context of the task.
+     * @param dsn      The database.
+     * @param user     The user.
+     * @param password The password.
+     *
+     * @return The pool.
+     */
+    public static synchronized OrientDBPool acquire(TopologyContext context, String dsn, String user, String password) {
+        String key = context.getThisComponentId() + ":" + user + "@" + dsn;
+        OrientDBPool pool = pools.get(key);
+
+        if (pool == null) {
+            List<Integer> tasks = new ArrayList<>(context.getThisWorkerTasks());
+            tasks.retainAll(context.getComponentTasks(context.getThisComponentId()));
+
+            pool = new OrientDBPool(key, dsn, user, password, Math.max(1, tasks.size()));
+            pools.put(key, pool);
+        }
+
+        pool.references++;
+        return pool;
+    }
+
+    /**
+     * Stop using the pool, the connections are closed when nobody uses it.
+     */
+    public void release() {
+        synchronized (OrientDBPool.class) {
+            if (--this.references == 0) {
+                pools.remove(this.key);
+                this.pool.close();
+            }
+        }
+    }
+
+    /**
+     * Run a command with a connection of the pool.
+     *
+     * @param command The command. It must not keep the connection.
+     * @param <T>     Type of the result.
+     *
+     * @return The result of the command.
+     */
+    public <T> T execute(Function<ODatabaseDocumentTx, T> command) {
+        for (int attempt = 1; ; attempt++) {
+            OPartitionedDatabasePool current = this.pool;
+
+            try (ODatabaseDocumentTx connection = current.acquire()) {
+                return command.apply(connection);
+            }
+            catch (OIOException | OStorageException | ODatabaseException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn(String.format("OrientDB connection to %s lost, reconnecting: %s", this.dsn, e.toString()));
+                this.reset(current);
+            }
+        }
+    }
+
+    /**
+     * Replace a broken pool, unless another task did it already.
+     */
+    private synchronized void reset(OPartitionedDatabasePool broken) {
+        if (this.pool != broken) {
+            return;
+        }
+
+        this.pool = this.createPool();
+        try {
+            broken.close();
+        }
+        catch (RuntimeException e) {
+            logger.warn(String.format("Error closing OrientDB pool: %s", e.toString()));
+        }
+    }
+
+    private OPartitionedDatabasePool createPool() {
+        return new OPartitionedDatabasePool(this.dsn, this.user, this.password, this.size, this.size);
+    }
+}
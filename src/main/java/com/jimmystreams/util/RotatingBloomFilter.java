@@ -0,0 +1,112 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.util;
+
+import java.util.Arrays;
+
+/**
+ * Time-windowed Bloom filter of strings with a fixed memory footprint.
+ * Two generations are kept: keys are added to the current one and looked up in both.
+ * When the current generation is older than the window it becomes the previous one,
+ * so a key is remembered between one and two windows.
+ *
+ * It is not thread-safe.
+ */
+public class RotatingBloomFilter {
+    private final int bits;
+    private final int hashes;
+    private final long window;
+
+    private long[] current;
+    private long[] previous;
+    private long rotated;
+
+    /**
+     * @param expected Amount of keys added per window.
+     * @param fpp      Desired false positive probability, e.g. 0.01.
+     * @param window   Time (ms) covered by each generation.
+     */
+    public RotatingBloomFilter(int expected, double fpp, long window) {
+        double ln2 = Math.log(2);
+        this.bits = (int) Math.max(64, Math.ceil(-expected * Math.log(fpp) / (ln2 * ln2)));
+        this.hashes = (int) Math.max(1, Math.round((double) this.bits / expected * ln2));
+        this.window = window;
+
+        this.current = new long[(this.bits + 63) / 64];
+        this.previous = new long[this.current.length];
+        this.rotated = System.currentTimeMillis();
+    }
+
+    /**
+     * @param key The key.
+     *
+     * @return False when the key was surely not added, true when it probably was.
+     */
+    public boolean mightContain(String key) {
+        this.rotate();
+        long hash = hash(key);
+        return this.contains(this.current, hash) || this.contains(this.previous, hash);
+    }
+
+    public void put(String key) {
+        this.rotate();
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 1; i <= this.hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.bits;
+            this.current[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean contains(long[] filter, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 1; i <= this.hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.bits;
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rotate() {
+        long now = System.currentTimeMillis();
+        if (now - this.rotated < this.window) {
+            return;
+        }
+
+        // Reuse the oldest generation as the new current one.
+        long[] oldest = this.previous;
+        Arrays.fill(oldest, 0L);
+        this.previous = this.current;
+        this.current = oldest;
+        this.rotated = now;
+    }
+
+    /**
+     * 64 bits FNV-1a hash with the MurmurHash3 finalizer,
+     * split later in two hashes (Kirsch-Mitzenmacher).
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53a87e1L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.util;
+
+import org.apache.storm.Config;
+import org.apache.storm.tuple.Tuple;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Buffer of tuples waiting to be written together.
+ * The batch is ready to be flushed when it reaches the maximum size or when
+ * the oldest tuple has been waiting longer than the maximum latency.
+ */
+public class TupleBatch {
+    private final int size;
+    private final long maxLatency;
+    private final List<Tuple> tuples;
+    private final LongSupplier clock;
+    private long oldest;
+
+    /**
+     * @param size       Maximum amount of tuples in the batch.
+     * @param maxLatency Maximum time (ms) a tuple can wait in the batch.
+     */
+    public TupleBatch(int size, long maxLatency) {
+        this(size, maxLatency, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Current time (ms), a fake one in the tests.
+     */
+    TupleBatch(int size, long maxLatency, LongSupplier clock) {
+        this.size = size;
+        this.maxLatency = maxLatency;
+        this.tuples = new ArrayList<>(size);
+        this.clock = clock;
+    }
+
+    public void add(Tuple tuple) {
+        if (this.tuples.isEmpty()) {
+            this.oldest = this.clock.getAsLong();
+        }
+        this.tuples.add(tuple);
+    }
+
+    public boolean isEmpty() {
+        return this.tuples.isEmpty();
+    }
+
+    public int size() {
+        return this.tuples.size();
+    }
+
+    /**
+     * @return True when the batch is full or the oldest tuple waited too long.
+     */
+    public boolean isReady() {
+        return !this.tuples.isEmpty() && (this.tuples.size() >= this.size
+                || this.clock.getAsLong() - this.oldest >= this.maxLatency);
+    }
+
+    /**
+     * Extract all the tuples, leaving the batch empty.
+     *
+     * @return The tuples in arrival order.
+     */
+    public List<Tuple> drain() {
+        List<Tuple> drained = new ArrayList<>(this.tuples);
+        this.tuples.clear();
+        return drained;
+    }
+
+    /**
+     * Component configuration that makes Storm send tick tuples often enough
+     * to honor the maximum latency of a batch.
+     *
+     * @param maxLatency Maximum time (ms) a tuple can wait in the batch.
+     *
+     * @return The component configuration.
+     */
+    public static Map<String, Object> tickConfiguration(long maxLatency) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, Math.max(1, (int)(maxLatency / 1000)));
+        return conf;
+    }
+}
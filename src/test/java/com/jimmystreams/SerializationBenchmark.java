@@ -0,0 +1,104 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams;
+
+import com.jimmystreams.activity.ActivityEnvelope;
+import org.apache.storm.Config;
+import org.apache.storm.serialization.KryoValuesDeserializer;
+import org.apache.storm.serialization.KryoValuesSerializer;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+import org.bson.Document;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of moving a notification tuple between workers: the registered Kryo serializers
+ * against the Java serialization used before they were registered.
+ *
+ * Run with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.jimmystreams.SerializationBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private KryoValuesSerializer serializer;
+    private KryoValuesDeserializer deserializer;
+    private Values values;
+    private byte[] kryoBytes;
+    private byte[] javaBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        Config conf = new Config();
+        conf.putAll(Utils.readDefaultConfig());
+        SpreaderTopology.registerSerializations(conf);
+
+        this.serializer = new KryoValuesSerializer(conf);
+        this.deserializer = new KryoValuesDeserializer(conf);
+
+        // The values of a tuple emitted by the notification audience.
+        this.values = new Values(
+                new JSONObject().put("id", "u1").put("notificationType", "mention"),
+                ActivityEnvelope.parse(SerializationTest.ACTIVITY),
+                new Document("id", "u1").append("persist", true),
+                "u1:mention:p1");
+
+        this.kryoBytes = this.serializer.serialize(this.values);
+        this.javaBytes = this.javaSerialize();
+    }
+
+    @Benchmark
+    public byte[] kryoSerialize() {
+        return this.serializer.serialize(this.values);
+    }
+
+    @Benchmark
+    public List<Object> kryoDeserialize() {
+        return this.deserializer.deserialize(this.kryoBytes);
+    }
+
+    @Benchmark
+    public byte[] javaSerialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            // Documents and JSON objects are not Serializable, they travel as text.
+            output.writeObject(this.values.get(0).toString());
+            output.writeObject(this.values.get(1));
+            output.writeObject(((Document)this.values.get(2)).toJson());
+            output.writeObject(this.values.get(3));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object javaDeserialize() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(this.javaBytes))) {
+            return new Values(
+                    new JSONObject((String)input.readObject()),
+                    input.readObject(),
+                    Document.parse((String)input.readObject()),
+                    input.readObject());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SerializationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
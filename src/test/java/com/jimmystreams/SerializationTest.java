@@ -0,0 +1,151 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams;
+
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.activity.ActivityObject;
+import org.apache.storm.Config;
+import org.apache.storm.serialization.KryoValuesDeserializer;
+import org.apache.storm.serialization.KryoValuesSerializer;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip of the values emitted by the bolts through the serializers registered in the topology.
+ * Java serialization is disabled, so a value without serializer makes the tuple fail between workers.
+ */
+public class SerializationTest {
+
+    static final String ACTIVITY = "{\"aid\":\"a1\",\"verb\":\"publish\","
+            + "\"actor\":{\"id\":\"u1\",\"objectType\":\"user\"},"
+            + "\"object\":{\"id\":\"p1\",\"objectType\":\"post\"},"
+            + "\"target\":{\"id\":\"g1\",\"objectType\":\"group\"},"
+            + "\"published\":\"2016-05-10T12:30:15.250Z\","
+            + "\"to\":[{\"id\":\"u2\",\"objectType\":\"user\"},{\"id\":\"u3\"}],"
+            + "\"cc\":[{\"id\":\"t1\",\"objectType\":\"technology\"}]}";
+
+    private KryoValuesSerializer serializer;
+    private KryoValuesDeserializer deserializer;
+
+    @Before
+    public void setUp() {
+        Config conf = new Config();
+        conf.putAll(Utils.readDefaultConfig());
+        SpreaderTopology.registerSerializations(conf);
+
+        this.serializer = new KryoValuesSerializer(conf);
+        this.deserializer = new KryoValuesDeserializer(conf);
+    }
+
+    @Test
+    public void activityEnvelope() {
+        ActivityEnvelope activity = ActivityEnvelope.parse(ACTIVITY);
+        ActivityEnvelope copy = (ActivityEnvelope)this.roundTrip(activity);
+
+        assertEquals(activity.getAid(), copy.getAid());
+        assertEquals(activity.getVerb(), copy.getVerb());
+        assertObjectEquals(activity.getActor(), copy.getActor());
+        assertObjectEquals(activity.getObject(), copy.getObject());
+        assertObjectEquals(activity.getTarget(), copy.getTarget());
+        assertEquals(activity.getPublished(), copy.getPublished());
+        assertArrayEquals(activity.getRaw(), copy.getRaw());
+        assertEquals(ACTIVITY, copy.getJson());
+
+        for (String field : ActivityEnvelope.AUDIENCE_FIELDS) {
+            List<ActivityObject> expected = activity.getAudience(field);
+            List<ActivityObject> actual = copy.getAudience(field);
+
+            assertEquals(field, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertObjectEquals(expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void activityEnvelopeWithoutOptionalFields() {
+        String json = "{\"aid\":\"a2\",\"verb\":\"follow\",\"actor\":{\"id\":\"u1\"},\"object\":{\"id\":\"u2\",\"objectType\":\"user\"}}";
+        ActivityEnvelope copy = (ActivityEnvelope)this.roundTrip(ActivityEnvelope.parse(json));
+
+        assertEquals("a2", copy.getAid());
+        assertNull(copy.getActor().getObjectType());
+        assertNull(copy.getTarget());
+        assertFalse(copy.hasPublished());
+        assertTrue(copy.getAudience("to").isEmpty());
+        assertEquals(json, copy.getJson());
+    }
+
+    @Test
+    public void bsonDocument() {
+        Document stream = new Document("id", "u1")
+                .append("persist", true)
+                .append("owner", new ObjectId())
+                .append("size", 3)
+                .append("tags", Arrays.asList("a", "b"))
+                .append("meta", new Document("kind", "user"));
+
+        assertEquals(stream, this.roundTrip(stream));
+    }
+
+    @Test
+    public void jsonObject() {
+        JSONObject user = new JSONObject()
+                .put("id", "u1")
+                .put("notificationType", "mention")
+                .put("count", 2)
+                .put("nested", new JSONObject().put("enabled", true));
+
+        assertTrue(user.similar(this.roundTrip(user)));
+    }
+
+    @Test
+    public void tupleWithEveryType() {
+        Values values = new Values(
+                new JSONObject().put("id", "u1"), ActivityEnvelope.parse(ACTIVITY), new Document("id", "s1"), "group", 3, 4L, true);
+
+        List<Object> copy = this.deserializer.deserialize(this.serializer.serialize(values));
+
+        assertEquals(values.size(), copy.size());
+        assertEquals("a1", ((ActivityEnvelope)copy.get(1)).getAid());
+        assertEquals(values.subList(2, values.size()), copy.subList(2, copy.size()));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void unregisteredTypeFails() {
+        this.roundTrip(new Unregistered());
+    }
+
+    private Object roundTrip(Object value) {
+        byte[] bytes = this.serializer.serialize(new Values(value));
+        return this.deserializer.deserialize(bytes).get(0);
+    }
+
+    private static void assertObjectEquals(ActivityObject expected, ActivityObject actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getObjectType(), actual.getObjectType());
+    }
+
+    private static class Unregistered implements Serializable {
+        private final String value = "value";
+    }
+}
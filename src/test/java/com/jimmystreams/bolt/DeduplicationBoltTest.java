@@ -0,0 +1,109 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.bolt;
+
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.jimmystreams.spout.SqsPoolSpout;
+import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.utils.Utils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+public class DeduplicationBoltTest {
+
+    private static final String ACTIVITY = "{\"aid\":\"a1\",\"verb\":\"publish\","
+            + "\"actor\":{\"id\":\"u1\",\"objectType\":\"user\"},\"object\":{\"id\":\"p1\",\"objectType\":\"post\"}}";
+
+    private DeduplicationBolt bolt;
+    private OutputCollector collector;
+
+    @Before
+    public void setUp() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("dedup_capacity", 1000L);
+        conf.put("dedup_window", 60000L);
+
+        TopologyContext context = mock(TopologyContext.class);
+        when(context.registerMetric(anyString(), any(IMetric.class), anyInt()))
+                .thenAnswer(invocation -> invocation.getArguments()[1]);
+
+        this.collector = mock(OutputCollector.class);
+        this.bolt = new DeduplicationBolt();
+        this.bolt.prepare(conf, context, this.collector);
+    }
+
+    @Test
+    public void copyInProcessIsHeldAndDroppedWhenTheActivityCompletes() {
+        Tuple original = activity(false);
+        Tuple copy = activity(false);
+
+        this.bolt.execute(original);
+        this.bolt.execute(copy);
+
+        verify(this.collector).emit(same(original), anyList());
+        verify(this.collector, never()).ack(copy);
+        verify(this.collector, never()).fail(copy);
+
+        this.bolt.execute(done(true));
+        verify(this.collector).ack(copy);
+        verify(this.collector, never()).emit(same(copy), anyList());
+    }
+
+    @Test
+    public void copyInProcessIsFailedWhenTheActivityFails() {
+        Tuple original = activity(false);
+        Tuple copy = activity(false);
+
+        this.bolt.execute(original);
+        this.bolt.execute(copy);
+        this.bolt.execute(done(false));
+
+        verify(this.collector).fail(copy);
+        verify(this.collector, never()).ack(copy);
+
+        // The activity was not processed, the replay passes.
+        Tuple replay = activity(true);
+        this.bolt.execute(replay);
+        verify(this.collector).emit(same(replay), anyList());
+    }
+
+    @Test
+    public void copyAfterCompletionIsDropped() {
+        this.bolt.execute(activity(false));
+        this.bolt.execute(done(true));
+
+        Tuple copy = activity(false);
+        this.bolt.execute(copy);
+
+        verify(this.collector).ack(copy);
+        verify(this.collector, never()).emit(same(copy), anyList());
+    }
+
+    private static Tuple activity(boolean replay) {
+        Tuple tuple = mock(Tuple.class);
+        when(tuple.getSourceStreamId()).thenReturn(Utils.DEFAULT_STREAM_ID);
+        when(tuple.getValueByField("activity")).thenReturn(ActivityEnvelope.parse(ACTIVITY));
+        when(tuple.getBooleanByField("replay")).thenReturn(replay);
+        return tuple;
+    }
+
+    private static Tuple done(boolean completed) {
+        Tuple tuple = mock(Tuple.class);
+        when(tuple.getSourceStreamId()).thenReturn(SqsPoolSpout.ACTIVITY_DONE_STREAM);
+        when(tuple.getStringByField("aid")).thenReturn("a1");
+        when(tuple.getBooleanByField("completed")).thenReturn(completed);
+        return tuple;
+    }
+}
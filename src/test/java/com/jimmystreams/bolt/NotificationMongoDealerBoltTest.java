@@ -0,0 +1,145 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.bolt;
+
+import com.jimmystreams.activity.ActivityEnvelope;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class NotificationMongoDealerBoltTest {
+
+    private static final String USER = "57a0c1f2e4b0a1b2c3d4e5f6";
+
+    private MongoCollection<Document> collection;
+    private OutputCollector collector;
+    private NotificationMongoDealerBolt bolt;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.collection = mock(MongoCollection.class);
+        this.collector = mock(OutputCollector.class);
+
+        this.bolt = new NotificationMongoDealerBolt("mongodb://localhost/test", "notifications") {
+            @Override
+            protected MongoCollection<Document> openCollection() {
+                return NotificationMongoDealerBoltTest.this.collection;
+            }
+        }.withBatching(3, 60000);
+        this.bolt.prepare(new HashMap(), mock(TopologyContext.class), this.collector);
+    }
+
+    @Test
+    public void notificationsOfAGroupAreWrittenTogether() {
+        Tuple first = notification("a1", "p1");
+        Tuple second = notification("a2", "p1");
+        Tuple third = notification("a1", "p1");
+
+        this.bolt.execute(first);
+        this.bolt.execute(second);
+        verify(this.collection, never()).bulkWrite(anyList(), any(BulkWriteOptions.class));
+
+        this.bolt.execute(third);
+
+        List<Document> updates = this.written();
+        assertEquals(1, updates.size());
+
+        Document update = updates.get(0);
+        Document who = (Document)((Document)update.get("$push")).get("who");
+        // The most recent actors first, each of them once.
+        assertEquals(Arrays.asList("a1", "a2"), who.get("$each"));
+        assertEquals(0, who.get("$position"));
+        assertEquals(100, who.get("$slice"));
+        assertEquals(3, ((Document)update.get("$inc")).get("times"));
+
+        List<Tuple> tuples = Arrays.asList(first, second, third);
+        verify(this.collector).emit(tuples, new Values(USER, "notification"));
+        for (Tuple tuple : tuples) {
+            verify(this.collector).ack(tuple);
+        }
+    }
+
+    @Test
+    public void everyGroupIsAnUpsertOfItsOwn() {
+        this.bolt.execute(notification("a1", "p1"));
+        this.bolt.execute(notification("a2", "p2"));
+        this.bolt.execute(notification("a3", "p1"));
+
+        List<Document> updates = this.written();
+        assertEquals(2, updates.size());
+        assertEquals(2, ((Document)updates.get(0).get("$inc")).get("times"));
+        assertEquals(1, ((Document)updates.get(1).get("$inc")).get("times"));
+        assertEquals("p2", ((Document)((Document)updates.get(1).get("$set")).get("object")).get("id"));
+    }
+
+    @Test
+    public void onlyTheGroupWithAnErrorIsFailed() {
+        MongoBulkWriteException error = mock(MongoBulkWriteException.class);
+        when(error.getWriteErrors()).thenReturn(Collections.singletonList(
+                new BulkWriteError(11000, "duplicate key", new BsonDocument(), 1)));
+        when(this.collection.bulkWrite(anyList(), any(BulkWriteOptions.class))).thenThrow(error);
+
+        Tuple first = notification("a1", "p1");
+        Tuple second = notification("a2", "p2");
+        Tuple third = notification("a3", "p1");
+        this.bolt.execute(first);
+        this.bolt.execute(second);
+        this.bolt.execute(third);
+
+        verify(this.collector).ack(first);
+        verify(this.collector).ack(third);
+        verify(this.collector).fail(second);
+        verify(this.collector, never()).ack(second);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Document> written() {
+        ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(this.collection).bulkWrite(captor.capture(), any(BulkWriteOptions.class));
+
+        List<Document> updates = new ArrayList<>();
+        for (WriteModel<Document> model : (List<WriteModel<Document>>)captor.getValue()) {
+            updates.add((Document)((UpdateOneModel<Document>)model).getUpdate());
+        }
+        return updates;
+    }
+
+    private static Tuple notification(String actor, String object) {
+        JSONObject user = new JSONObject().put("id", USER).put("notificationType", "comment");
+        ActivityEnvelope activity = ActivityEnvelope.parse(String.format("{\"aid\":\"%s-%s\",\"verb\":\"comment\","
+                + "\"actor\":{\"id\":\"%s\",\"objectType\":\"user\"},\"object\":{\"id\":\"%s\",\"objectType\":\"post\"}}",
+                actor, object, actor, object));
+
+        Tuple tuple = mock(Tuple.class);
+        when(tuple.getValueByField("user")).thenReturn(user);
+        when(tuple.getValueByField("activity")).thenReturn(activity);
+        return tuple;
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.bolt;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import org.apache.storm.Constants;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.tuple.Tuple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class SNSMessageDealerBoltTest {
+
+    /**
+     * How the stub completes the requests.
+     */
+    private enum Outcome { SUCCESS, ERROR, HOLD }
+
+    private volatile Outcome outcome;
+    private BlockingQueue<AsyncHandler<PublishRequest, PublishResult>> held;
+    private BlockingQueue<PublishRequest> published;
+    private OutputCollector collector;
+    private SNSMessageDealerBolt bolt;
+
+    @Before
+    public void setUp() {
+        this.outcome = Outcome.SUCCESS;
+        this.held = new LinkedBlockingQueue<>();
+        this.published = new LinkedBlockingQueue<>();
+        this.collector = mock(OutputCollector.class);
+    }
+
+    @After
+    public void tearDown() {
+        // Let the cleanup finish the requests held.
+        this.release(this.held.size());
+        this.bolt.cleanup();
+    }
+
+    @Test
+    public void ackOnSuccess() {
+        this.prepare(16);
+        Tuple tuple = notification("u1");
+
+        this.bolt.execute(tuple);
+        this.bolt.execute(tick());
+
+        verify(this.collector).ack(tuple);
+        verify(this.collector, never()).fail(tuple);
+
+        PublishRequest request = this.published.poll();
+        assertEquals("topic", request.getTopicArn());
+        assertTrue(request.getMessage().contains("u1"));
+    }
+
+    @Test
+    public void failOnError() {
+        this.prepare(16);
+        this.outcome = Outcome.ERROR;
+        Tuple tuple = notification("u1");
+
+        this.bolt.execute(tuple);
+        this.bolt.execute(tick());
+
+        verify(this.collector).fail(tuple);
+        verify(this.collector, never()).ack(tuple);
+    }
+
+    @Test
+    public void blocksAtMaxInFlight() throws InterruptedException {
+        this.prepare(2);
+        this.outcome = Outcome.HOLD;
+        Tuple first = notification("u1");
+
+        this.bolt.execute(first);
+        this.bolt.execute(notification("u2"));
+        assertEquals(2, this.held.size());
+
+        // The third request waits for a free slot.
+        Thread executor = new Thread(() -> this.bolt.execute(notification("u3")));
+        executor.start();
+        executor.join(300);
+        assertTrue(executor.isAlive());
+        assertEquals(2, this.published.size());
+
+        // A completed request frees its slot.
+        this.release(1);
+        executor.join(5000);
+        assertFalse(executor.isAlive());
+        assertEquals(3, this.published.size());
+
+        this.bolt.execute(tick());
+        verify(this.collector).ack(first);
+    }
+
+    private void prepare(int maxInFlight) {
+        this.bolt = new SNSMessageDealerBolt("topic") {
+            @Override
+            protected AmazonSNSAsync createClient() {
+                return stub();
+            }
+        }.withMaxInFlight(maxInFlight);
+
+        this.bolt.prepare(new HashMap(), mock(TopologyContext.class), this.collector);
+    }
+
+    private void release(int amount) {
+        for (int i = 0; i < amount; i++) {
+            AsyncHandler<PublishRequest, PublishResult> handler = this.held.poll();
+            if (handler != null) {
+                handler.onSuccess(null, new PublishResult().withMessageId("released"));
+            }
+        }
+    }
+
+    /**
+     * @return A client that completes the requests as told by the outcome.
+     */
+    @SuppressWarnings("unchecked")
+    private AmazonSNSAsync stub() {
+        return (AmazonSNSAsync)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {AmazonSNSAsync.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "publishAsync":
+                            PublishRequest request = (PublishRequest)args[0];
+                            AsyncHandler<PublishRequest, PublishResult> handler = (AsyncHandler<PublishRequest, PublishResult>)args[1];
+                            this.published.add(request);
+
+                            if (this.outcome == Outcome.SUCCESS) {
+                                handler.onSuccess(request, new PublishResult().withMessageId("m" + this.published.size()));
+                            }
+                            else if (this.outcome == Outcome.ERROR) {
+                                handler.onError(new AmazonServiceException("Throttled"));
+                            }
+                            else {
+                                this.held.add(handler);
+                            }
+                            return new CompletableFuture<PublishResult>();
+                        case "shutdown":
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "SNS stub";
+                        default:
+                            throw new UnsupportedOperationException(method.toString());
+                    }
+                });
+    }
+
+    private static Tuple notification(String user) {
+        Tuple tuple = mock(Tuple.class);
+        when(tuple.getSourceComponent()).thenReturn("publish_notification");
+        when(tuple.getSourceStreamId()).thenReturn("default");
+        when(tuple.getStringByField("user")).thenReturn(user);
+        when(tuple.getStringByField("messageType")).thenReturn("notification");
+        return tuple;
+    }
+
+    private static Tuple tick() {
+        Tuple tuple = mock(Tuple.class);
+        when(tuple.getSourceComponent()).thenReturn(Constants.SYSTEM_COMPONENT_ID);
+        when(tuple.getSourceStreamId()).thenReturn(Constants.SYSTEM_TICK_STREAM_ID);
+        return tuple;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.bolt;
+
+import com.jimmystreams.activity.ActivityEnvelope;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SocialPartitionBoltTest {
+
+    private static final String ACTOR = "\"actor\":{\"id\":\"u1\",\"objectType\":\"user\"}";
+    private static final String OBJECT = "\"object\":{\"id\":\"p1\",\"objectType\":\"post\"}";
+    private static final String TARGET = "\"target\":{\"id\":\"g1\",\"objectType\":\"group\"}";
+
+    @Test
+    public void objectVerbsArePartitionedByObject() {
+        assertEquals("p1", key("read", ACTOR, OBJECT, TARGET));
+        assertEquals("p1", key("upvote", ACTOR, OBJECT));
+        assertEquals("p1", key("downvote", ACTOR, OBJECT));
+    }
+
+    @Test
+    public void targetVerbsArePartitionedByTarget() {
+        assertEquals("g1", key("share", ACTOR, OBJECT, TARGET));
+        assertEquals("g1", key("comment", ACTOR, OBJECT, TARGET));
+        assertEquals("g1", key("review", ACTOR, OBJECT, TARGET));
+    }
+
+    @Test
+    public void otherVerbsArePartitionedByActor() {
+        assertEquals("u1", key("publish", ACTOR, OBJECT, TARGET));
+        assertEquals("u1", key("follow", ACTOR, OBJECT));
+    }
+
+    @Test
+    public void actorWhenTheHotVertexIsMissing() {
+        assertEquals("u1", key("comment", ACTOR, OBJECT));
+        assertEquals("u1", key("read", ACTOR, TARGET));
+    }
+
+    @Test
+    public void aidWithoutActor() {
+        assertEquals("a1", key("publish", OBJECT));
+    }
+
+    private static String key(String verb, String... members) {
+        String json = String.format("{\"aid\":\"a1\",\"verb\":\"%s\",%s}", verb, String.join(",", members));
+        return SocialPartitionBolt.getPartitionKey(ActivityEnvelope.parse(json));
+    }
+}
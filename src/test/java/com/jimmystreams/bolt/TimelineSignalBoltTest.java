@@ -0,0 +1,134 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.bolt;
+
+import org.apache.storm.Constants;
+import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+public class TimelineSignalBoltTest {
+
+    private OutputCollector collector;
+    private TimelineSignalBolt bolt;
+
+    @Before
+    public void setUp() {
+        this.collector = mock(OutputCollector.class);
+    }
+
+    @Test
+    public void firstUpdateIsSignaledRightAway() {
+        this.prepare(60000, 100);
+        Tuple tuple = signal("u1");
+
+        this.bolt.execute(tuple);
+
+        verify(this.collector).emit(new Values("u1", "timeline", 1));
+        verify(this.collector).ack(tuple);
+    }
+
+    @Test
+    public void updatesWithinTheWindowAreCoalesced() {
+        this.prepare(60000, 100);
+        Tuple second = signal("u1");
+
+        this.bolt.execute(signal("u1"));
+        this.bolt.execute(second);
+        this.bolt.execute(signal("u1"));
+        this.bolt.execute(tick());
+
+        // Acknowledged even if the signal is delayed.
+        verify(this.collector).ack(second);
+        verify(this.collector, times(1)).emit(anyList());
+
+        this.bolt.cleanup();
+        verify(this.collector).emit(new Values("u1", "timeline", 2));
+    }
+
+    @Test
+    public void pendingUpdatesAreSignaledWhenTheWindowEnds() throws InterruptedException {
+        this.prepare(50, 100);
+
+        this.bolt.execute(signal("u1"));
+        this.bolt.execute(signal("u1"));
+        this.bolt.execute(signal("u1"));
+
+        Thread.sleep(100);
+        this.bolt.execute(tick());
+
+        verify(this.collector).emit(new Values("u1", "timeline", 1));
+        verify(this.collector).emit(new Values("u1", "timeline", 2));
+
+        // Nothing left to signal.
+        this.bolt.execute(tick());
+        verify(this.collector, times(2)).emit(anyList());
+    }
+
+    @Test
+    public void usersAreSignaledIndependently() {
+        this.prepare(60000, 100);
+
+        this.bolt.execute(signal("u1"));
+        this.bolt.execute(signal("u2"));
+
+        verify(this.collector).emit(new Values("u1", "timeline", 1));
+        verify(this.collector).emit(new Values("u2", "timeline", 1));
+    }
+
+    @Test
+    public void oldestPendingUserIsSignaledWhenFull() {
+        this.prepare(60000, 2);
+
+        for (String user : new String[] {"u1", "u2", "u3"}) {
+            this.bolt.execute(signal(user));
+            this.bolt.execute(signal(user));
+        }
+
+        // The third pending user exceeds the capacity, the first one does not wait for its window.
+        verify(this.collector).emit(new Values("u1", "timeline", 1));
+        verify(this.collector).emit(new Values("u1", "timeline", 2));
+        verify(this.collector, never()).emit(new Values("u2", "timeline", 2));
+        verify(this.collector, times(4)).emit(anyList());
+    }
+
+    private void prepare(long window, long capacity) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("timeline_signal_window", window);
+        conf.put("timeline_signal_capacity", capacity);
+
+        TopologyContext context = mock(TopologyContext.class);
+        when(context.registerMetric(anyString(), any(IMetric.class), anyInt()))
+                .thenAnswer(invocation -> invocation.getArguments()[1]);
+
+        this.bolt = new TimelineSignalBolt();
+        this.bolt.prepare(conf, context, this.collector);
+    }
+
+    private static Tuple signal(String user) {
+        Tuple tuple = mock(Tuple.class);
+        when(tuple.getStringByField("user")).thenReturn(user);
+        when(tuple.getStringByField("messageType")).thenReturn("timeline");
+        return tuple;
+    }
+
+    private static Tuple tick() {
+        Tuple tuple = mock(Tuple.class);
+        when(tuple.getSourceComponent()).thenReturn(Constants.SYSTEM_COMPONENT_ID);
+        when(tuple.getSourceStreamId()).thenReturn(Constants.SYSTEM_TICK_STREAM_ID);
+        return tuple;
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.social;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ScoreAccumulatorTest {
+
+    private ScoreAccumulator scores;
+
+    @Before
+    public void setUp() {
+        this.scores = new ScoreAccumulator();
+    }
+
+    @Test
+    public void mergesIncrementsOfTheSameVertex() {
+        this.scores.add("Article", "a1", 2.0);
+        this.scores.add("Article", "a1", 0.5);
+        this.scores.add("Article", "a2", 1.0);
+
+        Map<String, Double> drained = drain(this.scores);
+        assertEquals(2, drained.size());
+        assertEquals(2.5, drained.get("Article:a1"), 0.0);
+        assertEquals(1.0, drained.get("Article:a2"), 0.0);
+    }
+
+    @Test
+    public void keysByClassAndId() {
+        this.scores.add("Article", "x", 1.0);
+        this.scores.add("User", "x", 3.0);
+
+        Map<String, Double> drained = drain(this.scores);
+        assertEquals(1.0, drained.get("Article:x"), 0.0);
+        assertEquals(3.0, drained.get("User:x"), 0.0);
+    }
+
+    @Test
+    public void drainEmptiesTheAccumulator() {
+        this.scores.add("User", "u1", 1.0);
+
+        drain(this.scores);
+
+        assertTrue(this.scores.isEmpty());
+        assertTrue(drain(this.scores).isEmpty());
+    }
+
+    @Test
+    public void drainSkipsIncrementsThatCancelOut() {
+        this.scores.add("User", "u1", 1.0);
+        this.scores.add("User", "u1", -1.0);
+        this.scores.add("User", "u2", -2.0);
+
+        Map<String, Double> drained = drain(this.scores);
+        assertEquals(1, drained.size());
+        assertEquals(-2.0, drained.get("User:u2"), 0.0);
+    }
+
+    @Test
+    public void moveToMergesIntoTheTarget() {
+        ScoreAccumulator target = new ScoreAccumulator();
+        target.add("Article", "a1", 1.0);
+
+        this.scores.add("Article", "a1", 2.0);
+        this.scores.add("User", "u1", 1.0);
+        this.scores.moveTo(target);
+
+        assertTrue(this.scores.isEmpty());
+        Map<String, Double> drained = drain(target);
+        assertEquals(3.0, drained.get("Article:a1"), 0.0);
+        assertEquals(1.0, drained.get("User:u1"), 0.0);
+    }
+
+    @Test
+    public void clearDiscardsTheIncrements() {
+        this.scores.add("User", "u1", 1.0);
+        this.scores.clear();
+
+        assertTrue(this.scores.isEmpty());
+    }
+
+    private static Map<String, Double> drain(ScoreAccumulator scores) {
+        Map<String, Double> drained = new HashMap<>();
+        scores.drain((vertexClass, id, increment) -> drained.put(vertexClass + ":" + id, increment));
+        return drained;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.social;
+
+import com.jimmystreams.social.strategies.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StrategyRegistryTest {
+
+    private ActivityVerbStrategy fallback;
+    private StrategyRegistry registry;
+
+    @Before
+    public void setUp() {
+        this.fallback = new NoStrategy();
+        this.registry = StrategyRegistry.load(this.fallback);
+    }
+
+    @Test
+    public void mapsEveryVerbToItsStrategy() {
+        assertTrue(this.registry.get("publish") instanceof PublishVerbStrategy);
+        assertTrue(this.registry.get("follow") instanceof FollowVerbStrategy);
+        assertTrue(this.registry.get("comment") instanceof CommentVerbStrategy);
+        assertTrue(this.registry.get("read") instanceof ReadVerbStrategy);
+        assertTrue(this.registry.get("share") instanceof ShareVerbStrategy);
+        assertTrue(this.registry.get("review") instanceof ReviewVerbStrategy);
+        assertTrue(this.registry.get("upvote") instanceof VoteVerbStrategy);
+        assertTrue(this.registry.get("downvote") instanceof VoteVerbStrategy);
+    }
+
+    @Test
+    public void verbsOfAStrategyShareTheInstance() {
+        assertSame(this.registry.get("upvote"), this.registry.get("downvote"));
+        assertSame(this.registry.get("follow"), this.registry.get("follow"));
+    }
+
+    @Test
+    public void unknownVerbGetsTheFallback() {
+        assertSame(this.fallback, this.registry.get("unknown"));
+        assertSame(this.fallback, this.registry.get(null));
+    }
+
+    @Test
+    public void everyLoadedStrategyHandlesItsVerbs() {
+        for (String verb : new String[] {"publish", "follow", "comment", "read", "share", "review", "upvote", "downvote"}) {
+            assertTrue(verb, this.registry.get(verb).getVerbs().contains(verb));
+        }
+    }
+}
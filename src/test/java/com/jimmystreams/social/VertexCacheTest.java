@@ -0,0 +1,95 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.social;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.tinkerpop.blueprints.impls.orient.OrientVertex;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class VertexCacheTest {
+
+    private VertexCache cache;
+
+    @Before
+    public void setUp() {
+        this.cache = new VertexCache(100);
+    }
+
+    @Test
+    public void cachesTheRecordIdOfAPersistentVertex() {
+        ORID rid = rid(true);
+        this.cache.put("User", "u1", vertex(rid));
+
+        assertSame(rid, this.cache.get("User", "u1"));
+        assertNull(this.cache.get("Article", "u1"));
+        assertNull(this.cache.getCreated("User", "u1"));
+    }
+
+    @Test
+    public void doesNotCacheATemporaryRecordId() {
+        this.cache.put("User", "u1", vertex(rid(false)));
+
+        assertNull(this.cache.get("User", "u1"));
+    }
+
+    @Test
+    public void createdVertexIsCachedOnCommit() {
+        ORID rid = rid(false);
+        OrientVertex vertex = vertex(rid);
+        this.cache.created("User", "u1", vertex);
+
+        assertSame(vertex, this.cache.getCreated("User", "u1"));
+        assertNull(this.cache.get("User", "u1"));
+
+        // The commit gives the vertex its final record id.
+        when(rid.isPersistent()).thenReturn(true);
+        this.cache.committed();
+
+        assertNull(this.cache.getCreated("User", "u1"));
+        assertSame(rid, this.cache.get("User", "u1"));
+    }
+
+    @Test
+    public void rollbackDiscardsCreatedAndCachedVertices() {
+        this.cache.put("User", "u1", vertex(rid(true)));
+        this.cache.created("User", "u2", vertex(rid(false)));
+
+        this.cache.rolledBack();
+
+        assertNull(this.cache.get("User", "u1"));
+        assertNull(this.cache.getCreated("User", "u2"));
+
+        // Nothing left to cache on the next commit.
+        this.cache.committed();
+        assertNull(this.cache.get("User", "u2"));
+    }
+
+    @Test
+    public void invalidateRemovesTheRecordId() {
+        this.cache.put("User", "u1", vertex(rid(true)));
+        this.cache.invalidate("User", "u1");
+
+        assertNull(this.cache.get("User", "u1"));
+    }
+
+    private static ORID rid(boolean persistent) {
+        ORID rid = mock(ORID.class);
+        when(rid.isPersistent()).thenReturn(persistent);
+        when(rid.copy()).thenReturn(rid);
+        return rid;
+    }
+
+    private static OrientVertex vertex(ORID rid) {
+        OrientVertex vertex = mock(OrientVertex.class);
+        when(vertex.getIdentity()).thenReturn(rid);
+        return vertex;
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.spout;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveRateControllerTest {
+
+    private long now;
+    private AdaptiveRateController controller;
+
+    @Before
+    public void setUp() {
+        this.now = 0;
+        this.controller = new AdaptiveRateController(10, 40, 5, 1000, () -> this.now);
+    }
+
+    @Test
+    public void startsAtTheMinimum() {
+        assertEquals(10, this.controller.getLimit());
+        assertTrue(this.controller.allows(9));
+        assertFalse(this.controller.allows(10));
+    }
+
+    @Test
+    public void adjustsOncePerInterval() {
+        this.throttledAcks(200);
+
+        this.now += 999;
+        assertFalse(this.controller.adjust());
+        assertEquals(10, this.controller.getLimit());
+
+        this.now += 1;
+        assertTrue(this.controller.adjust());
+        assertEquals(15, this.controller.getLimit());
+    }
+
+    @Test
+    public void increasesAdditivelyUpToTheMaximum() {
+        int[] expected = {15, 20, 25, 30, 35, 40, 40};
+
+        for (int limit : expected) {
+            this.throttledAcks(200);
+            this.tick();
+            assertEquals(limit, this.controller.getLimit());
+        }
+    }
+
+    @Test
+    public void doesNotIncreaseWithoutThrottling() {
+        this.controller.acked(200);
+        this.tick();
+
+        assertEquals(10, this.controller.getLimit());
+    }
+
+    @Test
+    public void doesNotIncreaseWithoutAcks() {
+        this.controller.allows(10);
+        this.tick();
+
+        assertEquals(10, this.controller.getLimit());
+    }
+
+    @Test
+    public void halvesOnFail() {
+        this.growTo(40);
+
+        this.controller.failed();
+        this.tick();
+        assertEquals(20, this.controller.getLimit());
+
+        // The fails are counted per interval.
+        this.throttledAcks(200);
+        this.tick();
+        assertEquals(25, this.controller.getLimit());
+    }
+
+    @Test
+    public void halvesOnLatencyAboveTarget() {
+        this.growTo(40);
+
+        this.throttledAcks(5000);
+        this.tick();
+        assertEquals(20, this.controller.getLimit());
+    }
+
+    @Test
+    public void decreaseStopsAtTheMinimum() {
+        this.growTo(30);
+
+        for (int i = 0; i < 3; i++) {
+            this.controller.failed();
+            this.tick();
+        }
+
+        assertEquals(10, this.controller.getLimit());
+    }
+
+    @Test
+    public void latencyIsAMovingAverage() {
+        this.controller.acked(1000);
+        assertEquals(1000, this.controller.getLatency(), 0.001);
+
+        this.controller.acked(2000);
+        assertEquals(1200, this.controller.getLatency(), 0.001);
+    }
+
+    private void throttledAcks(long latency) {
+        this.controller.allows(this.controller.getLimit());
+        this.controller.acked(latency);
+    }
+
+    private void growTo(int limit) {
+        while (this.controller.getLimit() < limit) {
+            this.throttledAcks(200);
+            this.tick();
+        }
+        assertEquals(limit, this.controller.getLimit());
+    }
+
+    private void tick() {
+        this.now += 1000;
+        this.controller.adjust();
+    }
+}
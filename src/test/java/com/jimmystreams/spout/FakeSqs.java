@@ -0,0 +1,213 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.spout;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory SQS queue for the tests of the spouts.
+ *
+ * Only the requests used by the spouts are implemented: receive, send, and the batch deletes and
+ * visibility changes. The async requests complete before returning. Any other request fails.
+ * Messages received are invisible until they are deleted or their visibility timeout is set to zero,
+ * the timeouts themselves never expire.
+ */
+class FakeSqs implements InvocationHandler {
+
+    /**
+     * Time (ms) an empty receive waits, a short version of long polling.
+     */
+    private static final long EMPTY_RECEIVE_WAIT = 10;
+
+    private final Deque<Message> visible = new ArrayDeque<>();
+    private final Map<String, Message> invisible = new HashMap<>();
+    private final List<String> deleted = new ArrayList<>();
+    private final List<ChangeMessageVisibilityBatchRequestEntry> visibilityChanges = new ArrayList<>();
+    private final List<SendMessageRequest> sent = new ArrayList<>();
+    private final AtomicInteger receives = new AtomicInteger();
+    private final AtomicInteger ids = new AtomicInteger();
+    private int failingVisibilityChanges;
+
+    private final AmazonSQSAsync client = (AmazonSQSAsync)Proxy.newProxyInstance(
+            FakeSqs.class.getClassLoader(), new Class<?>[] {AmazonSQSAsync.class}, this);
+
+    /**
+     * @return The client of the queue.
+     */
+    AmazonSQSAsync client() {
+        return this.client;
+    }
+
+    /**
+     * Add a message to the queue.
+     *
+     * @param body The body.
+     *
+     * @return The message id.
+     */
+    synchronized String add(String body) {
+        String id = "m" + this.ids.incrementAndGet();
+        this.visible.add(new Message().withMessageId(id).withBody(body));
+        return id;
+    }
+
+    synchronized int visibleSize() {
+        return this.visible.size();
+    }
+
+    synchronized int invisibleSize() {
+        return this.invisible.size();
+    }
+
+    /**
+     * @return The receipt handles deleted, in order.
+     */
+    synchronized List<String> deleted() {
+        return new ArrayList<>(this.deleted);
+    }
+
+    /**
+     * @return The visibility changes, in order.
+     */
+    synchronized List<ChangeMessageVisibilityBatchRequestEntry> visibilityChanges() {
+        return new ArrayList<>(this.visibilityChanges);
+    }
+
+    synchronized List<SendMessageRequest> sent() {
+        return new ArrayList<>(this.sent);
+    }
+
+    /**
+     * Fail the next visibility changes with an error of SQS, not of the request.
+     *
+     * @param amount The amount of entries failed.
+     */
+    synchronized void failVisibilityChanges(int amount) {
+        this.failingVisibilityChanges = amount;
+    }
+
+    /**
+     * @return Amount of receive requests.
+     */
+    int receives() {
+        return this.receives.get();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "receiveMessage":
+                return this.receiveMessage((ReceiveMessageRequest)args[0]);
+            case "sendMessage":
+                return this.sendMessage((SendMessageRequest)args[0]);
+            case "deleteMessageBatchAsync":
+                return this.complete(args, this.deleteMessageBatch((DeleteMessageBatchRequest)args[0]));
+            case "changeMessageVisibilityBatchAsync":
+                return this.complete(args, this.changeMessageVisibilityBatch((ChangeMessageVisibilityBatchRequest)args[0]));
+            case "shutdown":
+                return null;
+            case "toString":
+                return "FakeSqs";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                throw new UnsupportedOperationException(method.toString());
+        }
+    }
+
+    private ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) throws InterruptedException {
+        this.receives.incrementAndGet();
+        int max = request.getMaxNumberOfMessages() != null ? request.getMaxNumberOfMessages() : 1;
+        List<Message> messages = new ArrayList<>();
+
+        synchronized (this) {
+            while (messages.size() < max && !this.visible.isEmpty()) {
+                Message message = this.visible.poll();
+                Message received = new Message()
+                        .withMessageId(message.getMessageId())
+                        .withBody(message.getBody())
+                        .withReceiptHandle(message.getMessageId() + "#" + this.ids.incrementAndGet());
+                this.invisible.put(received.getReceiptHandle(), message);
+                messages.add(received);
+            }
+        }
+
+        if (messages.isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(EMPTY_RECEIVE_WAIT);
+        }
+        return new ReceiveMessageResult().withMessages(messages);
+    }
+
+    private synchronized SendMessageResult sendMessage(SendMessageRequest request) {
+        this.sent.add(request);
+        return new SendMessageResult().withMessageId(this.add(request.getMessageBody()));
+    }
+
+    private synchronized DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+        DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+
+        for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+            if (this.invisible.remove(entry.getReceiptHandle()) != null) {
+                this.deleted.add(entry.getReceiptHandle());
+                result.getSuccessful().add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+            }
+            else {
+                result.getFailed().add(new BatchResultErrorEntry()
+                        .withId(entry.getId()).withSenderFault(true).withCode("ReceiptHandleIsInvalid"));
+            }
+        }
+        return result;
+    }
+
+    private synchronized ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest request) {
+        ChangeMessageVisibilityBatchResult result = new ChangeMessageVisibilityBatchResult();
+
+        for (ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) {
+            this.visibilityChanges.add(entry);
+            Message message = this.invisible.get(entry.getReceiptHandle());
+
+            if (this.failingVisibilityChanges > 0) {
+                this.failingVisibilityChanges--;
+                result.getFailed().add(new BatchResultErrorEntry()
+                        .withId(entry.getId()).withSenderFault(false).withCode("InternalError"));
+                continue;
+            }
+
+            if (message == null) {
+                result.getFailed().add(new BatchResultErrorEntry()
+                        .withId(entry.getId()).withSenderFault(true).withCode("ReceiptHandleIsInvalid"));
+                continue;
+            }
+            if (entry.getVisibilityTimeout() == 0) {
+                this.invisible.remove(entry.getReceiptHandle());
+                this.visible.add(message);
+            }
+            result.getSuccessful().add(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> CompletableFuture<R> complete(Object[] args, R result) {
+        if (args.length > 1 && args[1] != null) {
+            ((AsyncHandler<Object, R>)args[1]).onSuccess(args[0], result);
+        }
+        return CompletableFuture.completedFuture(result);
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.spout;
+
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SqsBatcherTest {
+
+    private FakeSqs sqs;
+    private SqsBatcher batcher;
+
+    @Before
+    public void setUp() {
+        this.sqs = new FakeSqs();
+        this.batcher = new SqsBatcher(this.sqs.client(), "queue", 1000);
+    }
+
+    @Test
+    public void lastVisibilityChangeWins() {
+        String handle = this.receive(1).get(0);
+
+        // A heartbeat extension followed by a fail.
+        this.batcher.changeVisibility(handle, 30);
+        this.batcher.changeVisibility(handle, 0);
+        this.batcher.flush();
+
+        List<ChangeMessageVisibilityBatchRequestEntry> changes = this.sqs.visibilityChanges();
+        assertEquals(1, changes.size());
+        assertEquals(0, (int)changes.get(0).getVisibilityTimeout());
+        assertEquals(1, this.sqs.visibleSize());
+    }
+
+    @Test
+    public void deleteDiscardsTheVisibilityChange() {
+        String handle = this.receive(1).get(0);
+
+        this.batcher.changeVisibility(handle, 30);
+        this.batcher.delete(handle);
+        this.batcher.changeVisibility(handle, 0);
+        this.batcher.flush();
+
+        assertTrue(this.sqs.visibilityChanges().isEmpty());
+        assertEquals(1, this.sqs.deleted().size());
+        assertEquals(0, this.sqs.visibleSize());
+    }
+
+    @Test
+    public void failedExtensionIsRetried() {
+        String handle = this.receive(1).get(0);
+
+        this.sqs.failVisibilityChanges(1);
+        this.batcher.changeVisibility(handle, 30);
+        this.batcher.flush();
+
+        this.batcher.tick();
+        this.batcher.flush();
+
+        List<ChangeMessageVisibilityBatchRequestEntry> changes = this.sqs.visibilityChanges();
+        assertEquals(2, changes.size());
+        assertEquals(30, (int)changes.get(1).getVisibilityTimeout());
+        assertEquals(1, this.sqs.invisibleSize());
+    }
+
+    @Test
+    public void lateRetryDoesNotHideAFailedMessage() {
+        String handle = this.receive(1).get(0);
+
+        // The heartbeat extension fails, then the fail is sent before the retry.
+        this.sqs.failVisibilityChanges(1);
+        this.batcher.changeVisibility(handle, 30);
+        this.batcher.flush();
+        this.batcher.changeVisibility(handle, 0);
+        this.batcher.flush();
+
+        this.batcher.tick();
+        this.batcher.flush();
+
+        List<ChangeMessageVisibilityBatchRequestEntry> changes = this.sqs.visibilityChanges();
+        assertEquals(2, changes.size());
+        assertEquals(0, (int)changes.get(1).getVisibilityTimeout());
+        assertEquals(1, this.sqs.visibleSize());
+    }
+
+    @Test
+    public void timeoutsShareTheBatch() {
+        List<String> handles = this.receive(10);
+
+        for (int i = 0; i < handles.size(); i++) {
+            this.batcher.changeVisibility(handles.get(i), i % 2 == 0 ? 0 : 30);
+        }
+
+        // A full batch is sent without waiting for the flush.
+        List<ChangeMessageVisibilityBatchRequestEntry> changes = this.sqs.visibilityChanges();
+        assertEquals(10, changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            assertEquals(handles.get(i), changes.get(i).getReceiptHandle());
+            assertEquals(i % 2 == 0 ? 0 : 30, (int)changes.get(i).getVisibilityTimeout());
+        }
+        assertEquals(5, this.sqs.visibleSize());
+    }
+
+    @Test
+    public void flushSendsBatchesOfTen() {
+        List<String> handles = this.receive(25);
+        for (String handle : handles) {
+            this.batcher.delete(handle);
+        }
+        this.batcher.flush();
+
+        assertEquals(handles, this.sqs.deleted());
+        assertEquals(0, this.sqs.invisibleSize());
+    }
+
+    private List<String> receive(int amount) {
+        for (int i = 0; i < amount; i++) {
+            this.sqs.add("message " + i);
+        }
+
+        List<String> handles = new ArrayList<>();
+        while (handles.size() < amount) {
+            for (Message message : this.sqs.client().receiveMessage(
+                    new ReceiveMessageRequest("queue").withMaxNumberOfMessages(SqsPrefetcher.MAX_MESSAGES)).getMessages()) {
+                handles.add(message.getReceiptHandle());
+            }
+        }
+        return handles;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.spout;
+
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.jimmystreams.activity.ActivityEnvelope;
+import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class SqsPoolSpoutTest {
+
+    static final String ACTIVITY = "{\"aid\":\"a1\",\"verb\":\"publish\","
+            + "\"actor\":{\"id\":\"u1\",\"objectType\":\"user\"},\"object\":{\"id\":\"p1\",\"objectType\":\"post\"}}";
+
+    private FakeSqs sqs;
+    private SqsPoolSpout spout;
+    private SpoutOutputCollector collector;
+    private List<List<Object>> tuples;
+    private List<Object> msgIds;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.sqs = new FakeSqs();
+        this.tuples = new ArrayList<>();
+        this.msgIds = new ArrayList<>();
+        this.collector = mock(SpoutOutputCollector.class);
+        when(this.collector.emit(anyList(), any())).thenAnswer(invocation -> {
+            this.tuples.add((List<Object>)invocation.getArguments()[0]);
+            this.msgIds.add(invocation.getArguments()[1]);
+            return Collections.emptyList();
+        });
+        this.spout = new SqsPoolSpout("queue", true) {
+            @Override
+            protected AmazonSQSAsync createClient() {
+                return sqs.client();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        this.spout.close();
+    }
+
+    @Test
+    public void ackDeletesTheMessage() {
+        this.sqs.add(ACTIVITY);
+        this.open(0);
+
+        this.spout.nextTuple();
+        Object msgId = this.msgIds.get(0);
+
+        // Nothing is deleted before the tuple tree completes.
+        this.spout.close();
+        assertTrue(this.sqs.deleted().isEmpty());
+        assertEquals(1, this.sqs.invisibleSize());
+
+        this.spout.ack(msgId);
+        this.spout.close();
+        assertEquals(Collections.singletonList(msgId), this.sqs.deleted());
+        assertEquals(0, this.sqs.invisibleSize());
+    }
+
+    @Test
+    public void failReleasesTheMessageAndMarksTheReplay() {
+        this.sqs.add(ACTIVITY);
+        this.open(0);
+
+        this.spout.nextTuple();
+        Object msgId = this.msgIds.get(0);
+
+        this.spout.fail(msgId);
+        this.spout.close();
+
+        List<ChangeMessageVisibilityBatchRequestEntry> changes = this.sqs.visibilityChanges();
+        assertEquals(1, changes.size());
+        assertEquals(msgId, changes.get(0).getReceiptHandle());
+        assertEquals(0, (int)changes.get(0).getVisibilityTimeout());
+        assertEquals(1, this.sqs.visibleSize());
+
+        // The message comes back flagged as a replay.
+        this.spout.nextTuple();
+        assertEquals(2, this.tuples.size());
+        assertEquals(Boolean.FALSE, this.tuples.get(0).get(2));
+        assertEquals("a1", ((ActivityEnvelope)this.tuples.get(1).get(0)).getAid());
+        assertEquals(Boolean.TRUE, this.tuples.get(1).get(2));
+    }
+
+    @Test
+    public void wrongMessagesAreReleased() {
+        this.sqs.add("not an activity");
+        this.open(0);
+
+        this.spout.nextTuple();
+        this.spout.close();
+
+        assertTrue(this.tuples.isEmpty());
+        assertEquals(1, this.sqs.visibleSize());
+    }
+
+    @Test
+    public void prefetchedMessagesAreEmittedAndAcked() throws InterruptedException {
+        for (int i = 0; i < 15; i++) {
+            this.sqs.add(ACTIVITY.replace("a1", "a" + i));
+        }
+        this.open(2);
+
+        // The spout never waits for SQS, it emits what the receivers buffered.
+        SqsPrefetcherTest.waitFor(() -> {
+            this.spout.nextTuple();
+            return this.msgIds.size() == 15;
+        });
+
+        for (Object msgId : this.msgIds) {
+            this.spout.ack(msgId);
+        }
+        this.spout.close();
+
+        assertEquals(new HashSet<>(this.msgIds), new HashSet<>(this.sqs.deleted()));
+        assertEquals(0, this.sqs.invisibleSize());
+    }
+
+    private void open(int receivers) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("sqs_sleep_time", 10L);
+        conf.put("sqs_batch", 5L);
+        conf.put("sqs_receivers", (long)receivers);
+        conf.put("sqs_buffer", 100L);
+        conf.put("sqs_wait_time", 1L);
+        conf.put("sqs_flush_interval", 200L);
+        conf.put("sqs_visibility_timeout", 30L);
+        conf.put("sqs_rate_min", 50L);
+        conf.put("sqs_rate_max", 1000L);
+        conf.put("sqs_rate_step", 50L);
+        conf.put("sqs_rate_target_latency", 10000L);
+        conf.put("dedup_capacity", 1000L);
+        conf.put("dedup_window", 60000L);
+
+        this.spout.open(conf, mockContext(), this.collector);
+    }
+
+    static TopologyContext mockContext() {
+        TopologyContext context = mock(TopologyContext.class);
+        when(context.registerMetric(anyString(), any(IMetric.class), anyInt()))
+                .thenAnswer(invocation -> invocation.getArguments()[1]);
+        return context;
+    }
+}
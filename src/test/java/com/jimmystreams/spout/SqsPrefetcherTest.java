@@ -0,0 +1,115 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.spout;
+
+import com.amazonaws.services.sqs.model.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class SqsPrefetcherTest {
+
+    private static final int RECEIVERS = 2;
+
+    private FakeSqs sqs;
+    private SqsInFlight inFlight;
+    private SqsPrefetcher prefetcher;
+
+    @Before
+    public void setUp() {
+        this.sqs = new FakeSqs();
+        this.inFlight = new SqsInFlight(30);
+    }
+
+    @After
+    public void tearDown() {
+        if (this.prefetcher != null) {
+            this.prefetcher.stop();
+        }
+    }
+
+    @Test
+    public void prefetchFillsTheBuffer() throws InterruptedException {
+        for (int i = 0; i < 25; i++) {
+            this.sqs.add("message " + i);
+        }
+
+        this.start(100);
+        waitFor(() -> this.prefetcher.size() == 25);
+
+        // Every message buffered is tracked as in flight, none is left in the queue.
+        assertEquals(25, this.inFlight.size());
+        assertEquals(0, this.sqs.visibleSize());
+
+        Set<String> bodies = new HashSet<>();
+        Message message;
+        while ((message = this.prefetcher.poll()) != null) {
+            bodies.add(message.getBody());
+        }
+        assertEquals(25, bodies.size());
+        assertNull(this.prefetcher.poll());
+    }
+
+    @Test
+    public void receiversPauseAtTheHighWaterMark() throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            this.sqs.add("message " + i);
+        }
+
+        this.start(20);
+        waitFor(() -> this.prefetcher.size() >= 20);
+        Thread.sleep(200);
+
+        // A receive already started can exceed the mark, at most by one batch per receiver.
+        int buffered = this.prefetcher.size();
+        assertTrue(buffered <= 20 + RECEIVERS * SqsPrefetcher.MAX_MESSAGES);
+        assertEquals(200 - buffered, this.sqs.visibleSize());
+
+        // Taking messages below the mark resumes the receivers.
+        int receives = this.sqs.receives();
+        for (int i = 0; i < buffered; i++) {
+            assertNotNull(this.prefetcher.poll());
+        }
+        waitFor(() -> this.sqs.receives() > receives && this.prefetcher.size() >= 20);
+        assertTrue(this.inFlight.size() >= buffered + 20);
+    }
+
+    @Test
+    public void raisingTheHighWaterMarkResumesTheReceivers() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            this.sqs.add("message " + i);
+        }
+
+        this.start(10);
+        waitFor(() -> this.prefetcher.size() >= 10);
+
+        this.prefetcher.setHighWater(100);
+        waitFor(() -> this.prefetcher.size() == 100);
+        assertEquals(0, this.sqs.visibleSize());
+    }
+
+    private void start(int highWater) {
+        this.prefetcher = new SqsPrefetcher(this.sqs.client(), "queue", RECEIVERS, highWater, 1, 10, this.inFlight);
+        this.prefetcher.start();
+    }
+
+    static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timeout waiting for the condition");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of parsing the published date of an activity: IsoDates against the SimpleDateFormat
+ * created per activity before, and against java.time.
+ *
+ * Run with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.jimmystreams.util.IsoDatesBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IsoDatesBenchmark {
+
+    private String date = "2016-05-21T18:30:00.123Z";
+
+    @Benchmark
+    public long isoDates() throws ParseException {
+        return IsoDates.parseMillis(this.date);
+    }
+
+    @Benchmark
+    public long simpleDateFormat() throws ParseException {
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'", Locale.ENGLISH).parse(this.date).getTime();
+    }
+
+    @Benchmark
+    public long instant() {
+        return Instant.parse(this.date).toEpochMilli();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(IsoDatesBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.util;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * IsoDates against the SimpleDateFormat it replaced, "yyyy-MM-dd'T'HH:mm:ss.S'Z'".
+ *
+ * The old parser took the 'Z' as a literal and used the time zone of the JVM,
+ * IsoDates reads the timestamps as UTC. Both agree when the JVM runs in UTC.
+ */
+public class IsoDatesTest {
+
+    private static final String LEGACY_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.S'Z'";
+
+    @Test
+    public void sameAsLegacyParserInUtc() throws ParseException {
+        String[] dates = {
+                "2016-05-21T18:30:00.123Z",
+                "1970-01-01T00:00:00.000Z",
+                "1969-12-31T23:59:59.999Z",
+                "1950-06-15T08:05:09.010Z",
+                "1900-01-01T00:00:00.000Z",
+                "1900-03-01T00:00:00.000Z",
+                "2000-02-29T12:00:00.001Z",
+                "2016-02-29T23:59:59.999Z",
+                "2016-03-01T00:00:00.000Z",
+                "2017-02-28T23:59:59.999Z",
+                "2100-02-28T00:00:00.000Z",
+                "2100-03-01T00:00:00.000Z",
+                "2016-12-31T23:59:59.999Z",
+                "9999-12-31T23:59:59.999Z",
+        };
+
+        for (String date : dates) {
+            assertEquals(date, legacy(date, TimeZone.getTimeZone("UTC")), IsoDates.parseMillis(date));
+        }
+    }
+
+    @Test
+    public void sameAsInstant() throws ParseException {
+        // Before 1582 SimpleDateFormat switches to the Julian calendar, IsoDates stays in the Gregorian one.
+        String[] dates = {
+                "1582-10-15T00:00:00.000Z",
+                "1582-10-04T00:00:00.000Z",
+                "1600-02-29T00:00:00.000Z",
+                "0001-01-01T00:00:00.000Z",
+                "0400-03-01T00:00:00.000Z",
+        };
+
+        for (String date : dates) {
+            assertEquals(date, Instant.parse(date).toEpochMilli(), IsoDates.parseMillis(date));
+        }
+    }
+
+    @Test
+    public void zIsUtcNotTheLocalTimeZone() throws ParseException {
+        TimeZone local = TimeZone.getTimeZone("America/Montevideo");
+        String date = "2016-05-21T18:30:00.123Z";
+
+        long legacy = legacy(date, local);
+
+        // The old parser read the local time, 3 hours behind UTC.
+        assertEquals(legacy + local.getOffset(legacy), IsoDates.parseMillis(date));
+        assertEquals(1463855400123L, IsoDates.parseMillis(date));
+    }
+
+    @Test
+    public void fractionIsAFractionOfSecond() throws ParseException {
+        long second = IsoDates.parseMillis("2016-05-21T18:30:00Z");
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+
+        // Same as the old parser with three digits.
+        assertEquals(second + 123, IsoDates.parseMillis("2016-05-21T18:30:00.123Z"));
+        assertEquals(legacy("2016-05-21T18:30:00.123Z", utc), IsoDates.parseMillis("2016-05-21T18:30:00.123Z"));
+
+        // The old parser read the digits as milliseconds: ".5" was 5 ms and ".1234" was 1234 ms.
+        assertEquals(second + 500, IsoDates.parseMillis("2016-05-21T18:30:00.5Z"));
+        assertEquals(second + 5, legacy("2016-05-21T18:30:00.5Z", utc));
+        assertEquals(second + 123, IsoDates.parseMillis("2016-05-21T18:30:00.1234Z"));
+        assertEquals(second + 1234, legacy("2016-05-21T18:30:00.1234Z", utc));
+        assertEquals(second + 123, IsoDates.parseMillis("2016-05-21T18:30:00.123456789Z"));
+    }
+
+    @Test
+    public void fractionIsOptional() throws ParseException {
+        assertEquals(1463855400000L, IsoDates.parseMillis("2016-05-21T18:30:00Z"));
+        assertLegacyRejects("2016-05-21T18:30:00Z");
+    }
+
+    @Test
+    public void offsetsAreRejected() {
+        // Neither parser accepts offsets.
+        String[] dates = {
+                "2016-05-21T18:30:00.123+02:00",
+                "2016-05-21T18:30:00.123-0300",
+                "2016-05-21T18:30:00.123",
+        };
+
+        for (String date : dates) {
+            assertRejects(date);
+            assertLegacyRejects(date);
+        }
+    }
+
+    @Test
+    public void malformedDatesAreRejected() {
+        String[] dates = {
+                "",
+                "2016-05-21",
+                "2016-05-21 18:30:00.123Z",
+                "2016/05/21T18:30:00.123Z",
+                "2016-13-21T18:30:00.123Z",
+                "2016-00-21T18:30:00.123Z",
+                "2016-05-00T18:30:00.123Z",
+                "2016-05-21T24:30:00.123Z",
+                "2016-05-21T18:60:00.123Z",
+                "2016-05-21T18:30:00.Z",
+                "2016-05-21T18:30:00,123Z",
+                "2016-05-21T18:30:00.12aZ",
+                "20x6-05-21T18:30:00.123Z",
+        };
+
+        for (String date : dates) {
+            assertRejects(date);
+        }
+    }
+
+    private static long legacy(String date, TimeZone timeZone) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat(LEGACY_FORMAT, Locale.ENGLISH);
+        format.setTimeZone(timeZone);
+        return format.parse(date).getTime();
+    }
+
+    private static void assertRejects(String date) {
+        try {
+            IsoDates.parseMillis(date);
+            fail("Parsed " + date);
+        }
+        catch (ParseException e) {
+            // Expected.
+        }
+    }
+
+    private static void assertLegacyRejects(String date) {
+        try {
+            legacy(date, TimeZone.getTimeZone("UTC"));
+            fail("Legacy parser parsed " + date);
+        }
+        catch (ParseException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * jimmy-streams-api
+ * Copyright(c) 2016 Jimmy Code Social (http://jimmycode.com)
+ * ISC Licensed
+ */
+
+package com.jimmystreams.util;
+
+import org.apache.storm.Config;
+import org.apache.storm.tuple.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TupleBatchTest {
+
+    private long now;
+    private TupleBatch batch;
+
+    @Before
+    public void setUp() {
+        this.now = 0;
+        this.batch = new TupleBatch(3, 1000, () -> this.now);
+    }
+
+    @Test
+    public void emptyBatchIsNeverReady() {
+        this.now += 5000;
+
+        assertTrue(this.batch.isEmpty());
+        assertFalse(this.batch.isReady());
+    }
+
+    @Test
+    public void readyWhenFull() {
+        this.batch.add(mock(Tuple.class));
+        this.batch.add(mock(Tuple.class));
+        assertFalse(this.batch.isReady());
+
+        this.batch.add(mock(Tuple.class));
+        assertEquals(3, this.batch.size());
+        assertTrue(this.batch.isReady());
+    }
+
+    @Test
+    public void readyWhenTheOldestTupleWaitedTooLong() {
+        this.batch.add(mock(Tuple.class));
+
+        this.now += 600;
+        this.batch.add(mock(Tuple.class));
+
+        // The latency counts from the first tuple, not the last one.
+        this.now += 399;
+        assertFalse(this.batch.isReady());
+
+        this.now += 1;
+        assertTrue(this.batch.isReady());
+    }
+
+    @Test
+    public void drainKeepsTheArrivalOrderAndEmptiesTheBatch() {
+        Tuple first = mock(Tuple.class);
+        Tuple second = mock(Tuple.class);
+        this.batch.add(first);
+        this.batch.add(second);
+
+        assertEquals(Arrays.asList(first, second), this.batch.drain());
+        assertTrue(this.batch.isEmpty());
+        assertFalse(this.batch.isReady());
+    }
+
+    @Test
+    public void latencyRestartsAfterDrain() {
+        this.batch.add(mock(Tuple.class));
+        this.now += 5000;
+        this.batch.drain();
+
+        this.batch.add(mock(Tuple.class));
+        assertFalse(this.batch.isReady());
+
+        this.now += 1000;
+        assertTrue(this.batch.isReady());
+    }
+
+    @Test
+    public void ticksAtLeastOncePerSecond() {
+        assertEquals(1, TupleBatch.tickConfiguration(200).get(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS));
+        assertEquals(5, TupleBatch.tickConfiguration(5000).get(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS));
+    }
+}